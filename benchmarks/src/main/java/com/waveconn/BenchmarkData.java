@@ -0,0 +1,106 @@
+package com.waveconn;
+
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Generated rows shared by the benchmarks
+ *
+ * Row i has one value of each Type, in Excel columns A to E:
+ * id (INT), amount (NUM), name (STR), day (DATE, a date formatted number) and active (BOOL).
+ * The values are the same as text and as cells, so validation of lines and of cells can be compared.
+ *
+ */
+class BenchmarkData {
+    static final String[] COLUMNS = {"id", "amount", "name", "day", "active"};
+    static final Type[] TYPES = {Type.INTEGER, Type.NUMBER, Type.STRING, Type.DATE, Type.BOOLEAN};
+    static final String DATE_FORMAT = "yyyy-mm-dd";
+
+    //Excel column of a Type
+    static int getColumn(Type type) {
+        for (int c = 0; c < TYPES.length; c++)
+            if (TYPES[c] == type)
+                return c;
+
+        throw new IllegalArgumentException(type.toString());
+    }
+
+    //value of row i as it is read from a text cell
+    static String getText(Type type, int i) {
+        switch (type) {
+            case INTEGER:
+                return String.valueOf(i);
+            case NUMBER:
+                return String.valueOf(i * 0.25);
+            case DATE:
+                return String.format("%04d-%02d-%02d", 2000 + i % 20, 1 + i % 12, 1 + i % 28);
+            case BOOLEAN:
+                return i % 2 == 0 ? "yes" : "no";
+            default:
+                return "name " + i;
+        }
+    }
+
+    //row i as a line of cell strings
+    static ArrayList<String> getLine(int i) {
+        ArrayList<String> line = new ArrayList();
+        for (Type type : TYPES)
+            line.add(getText(type, i));
+
+        return line;
+    }
+
+    //set the cell of row i to the value of column c the way a user would type it in Excel
+    static void setCell(Cell cell, int c, int i, CellStyle dateStyle) {
+        switch (TYPES[c]) {
+            case INTEGER:
+                cell.setCellValue(i);
+                break;
+            case NUMBER:
+                cell.setCellValue(i * 0.25);
+                break;
+            case DATE:
+                cell.setCellValue(36526 + i % 7300);
+                cell.setCellStyle(dateStyle);
+                break;
+            default:
+                cell.setCellValue(getText(TYPES[c], i));
+                break;
+        }
+    }
+
+    static CellStyle createDateStyle(Workbook wb) {
+        CellStyle style = wb.createCellStyle();
+        style.setDataFormat(wb.createDataFormat().getFormat(DATE_FORMAT));
+        return style;
+    }
+
+    //write rows data rows under a header row, streamed so a million rows fit in memory
+    static void writeWorkbook(File file, int rows) throws IOException {
+        SXSSFWorkbook wb = new SXSSFWorkbook(100);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            Sheet sheet = wb.createSheet("data");
+            CellStyle dateStyle = createDateStyle(wb);
+
+            Row header = sheet.createRow(0);
+            for (int c = 0; c < COLUMNS.length; c++)
+                header.createCell(c).setCellValue(COLUMNS[c]);
+
+            for (int i = 1; i <= rows; i++) {
+                Row row = sheet.createRow(i);
+                for (int c = 0; c < TYPES.length; c++)
+                    setCell(row.createCell(c), c, i, dateStyle);
+            }
+
+            wb.write(out);
+        } finally {
+            wb.dispose();
+            wb.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.waveconn;
+
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting numeric cells to strings, per cell
+ *
+ * dataFormatter is DataFormatter.formatCellValue() as POI does it, cellFormatter is the CellFormatter
+ * of the sheet importers which keeps the number format of each cell style.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(CellFormatBenchmark.CELLS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellFormatBenchmark {
+    static final int CELLS = 1000;
+
+    @Param({"General", "0.00", "#,##0.00", "0.00%", "yyyy-mm-dd", "0.00E+00"})
+    public String format;
+
+    private XSSFWorkbook wb;
+    private Cell[] cells;
+
+    private DataFormatter formatter;
+    private CellFormatter cellFormatter;
+
+    @Setup
+    public void setup() {
+        wb = new XSSFWorkbook();
+        Sheet sheet = wb.createSheet("data");
+        CellStyle style = wb.createCellStyle();
+        style.setDataFormat(wb.createDataFormat().getFormat(format));
+
+        cells = new Cell[CELLS];
+        for (int i = 0; i < CELLS; i++) {
+            cells[i] = sheet.createRow(i).createCell(0);
+            cells[i].setCellValue(36526 + i * 1.375);
+            cells[i].setCellStyle(style);
+        }
+
+        formatter = new DataFormatter(true);
+        cellFormatter = new CellFormatter(formatter);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        wb.close();
+    }
+
+    @Benchmark
+    public void dataFormatter(Blackhole bh) {
+        for (Cell cell : cells)
+            bh.consume(formatter.formatCellValue(cell));
+    }
+
+    @Benchmark
+    public void cellFormatter(Blackhole bh) {
+        for (Cell cell : cells)
+            bh.consume(cellFormatter.format(cell));
+    }
+}
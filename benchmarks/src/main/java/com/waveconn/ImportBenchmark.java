@@ -0,0 +1,113 @@
+package com.waveconn;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end import of a generated workbook into an embedded H2 database in MySQL mode
+ *
+ * The workbook is written once per trial with BenchmarkData, the table is emptied before each import.
+ * Every import runs the whole tool from its init file: reading, validation and insert.
+ * READ_MODE=DOM keeps the workbook in memory, so 1000000 rows need STREAM or a large heap.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ImportBenchmark {
+    static final String DB_URL = "jdbc:h2:mem:excel2mysql;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"STREAM"})
+    public String readMode;
+
+    @Param({"true"})
+    public boolean pipeline;
+
+    private File dir;
+    private File initFile;
+    //keeps the in-memory DB while the trial runs
+    private Connection con;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        dir = Files.createTempDirectory("excel2mysql").toFile();
+
+        File workbook = new File(dir, "bench.xlsx");
+        BenchmarkData.writeWorkbook(workbook, rows);
+
+        con = DriverManager.getConnection(DB_URL, "sa", "");
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS bench (id BIGINT, amount DOUBLE, name VARCHAR(256), "
+                    + "day DATE, active VARCHAR(5))");
+        }
+
+        Properties p = new Properties();
+        p.setProperty(Excel2MySQL.DB_URL, DB_URL);
+        p.setProperty(Excel2MySQL.DB_USER_NAME, "sa");
+        p.setProperty(Excel2MySQL.DB_PASSWORD, "");
+        p.setProperty(Excel2MySQL.DB_NAME, "excel2mysql");
+        p.setProperty(Excel2MySQL.DB_TABLE, "bench");
+        p.setProperty(Excel2MySQL.EXCEL_FILE_PATH, workbook.getPath());
+        p.setProperty(Excel2MySQL.EXCEL_ERROR_FILE_PATH, new File(dir, "errors.xlsx").getPath());
+        p.setProperty(Excel2MySQL.IS_READ_FIRST_LINE, "false");
+        p.setProperty(Excel2MySQL.BULK_SIZE, "1000");
+        p.setProperty(Excel2MySQL.READ_MODE, readMode);
+        p.setProperty(Excel2MySQL.PIPELINE, String.valueOf(pipeline));
+
+        for (int c = 0; c < BenchmarkData.COLUMNS.length; c++) {
+            String col = "COL_" + (char) ('A' + c);
+            p.setProperty(col, BenchmarkData.COLUMNS[c]);
+            p.setProperty(col + "_TYPE", BenchmarkData.TYPES[c].name().substring(0, 3));
+        }
+
+        initFile = new File(dir, "bench.ini");
+        try (OutputStream out = new FileOutputStream(initFile)) {
+            p.store(out, "ImportBenchmark");
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyTable() throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("TRUNCATE TABLE bench");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("DROP TABLE bench");
+        }
+        con.close();
+
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public long importWorkbook() {
+        Excel2MySQL app = new Excel2MySQL();
+        app.init(initFile.getPath());
+        app.dbImport();
+
+        return app.metrics.getCommittedRows();
+    }
+}
@@ -0,0 +1,45 @@
+package com.waveconn;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the multi-row INSERT statement of a mapping
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InsertStringBenchmark {
+    @Param({"5", "50"})
+    public int cols;
+
+    @Param({"1", "100", "1000"})
+    public int rows;
+
+    private List<Mapping> dbMap;
+
+    @Setup
+    public void setup() {
+        dbMap = new ArrayList();
+        for (int c = 0; c < cols; c++)
+            dbMap.add(new Mapping(getExcelSym(c), "col" + c));
+    }
+
+    //Excel column name of column index c, A to Z, AA to AZ, ...
+    private static String getExcelSym(int c) {
+        String sym = String.valueOf((char) ('A' + c % 26));
+        return c < 26 ? sym : getExcelSym(c / 26 - 1) + sym;
+    }
+
+    @Benchmark
+    public String getInsertString() {
+        return Mapping.getInsertString(dbMap, "bench", rows);
+    }
+}
@@ -0,0 +1,89 @@
+package com.waveconn;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation of one column of each Type, per row
+ *
+ * line validates cell strings as the streaming reader hands them over,
+ * cell validates the cells of a workbook in memory as READ_MODE=DOM does, including their formatting.
+ * All rows are valid, so no error file is written.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(ValidationBenchmark.ROWS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+    static final int ROWS = 1000;
+
+    @Param({"INTEGER", "NUMBER", "STRING", "DATE", "BOOLEAN"})
+    public Type type;
+
+    private FileImport file;
+    private SheetImporter sheet;
+
+    private ArrayList<String>[] lines;
+    private XSSFWorkbook wb;
+    private Row[] rows;
+
+    @Setup
+    public void setup() {
+        Excel2MySQL app = new Excel2MySQL();
+
+        int col = BenchmarkData.getColumn(type);
+        Mapping m = new Mapping(String.valueOf((char) ('A' + col)), BenchmarkData.COLUMNS[col]);
+        m.setType(type);
+        ImportPlan plan = new ImportPlan("bench", Collections.singletonList(m));
+
+        file = new FileImport(app, "bench.xlsx");
+        sheet = new SheetImporter(file, "data", plan, ROWS, null);
+
+        lines = new ArrayList[ROWS];
+        for (int i = 0; i < ROWS; i++)
+            lines[i] = BenchmarkData.getLine(i);
+
+        wb = new XSSFWorkbook();
+        Sheet data = wb.createSheet("data");
+        CellStyle dateStyle = BenchmarkData.createDateStyle(wb);
+        rows = new Row[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = data.createRow(i);
+            BenchmarkData.setCell(rows[i].createCell(col), col, i, dateStyle);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        wb.close();
+    }
+
+    @Benchmark
+    public void line() {
+        for (int i = 0; i < ROWS; i++)
+            sheet.rowToData(i, lines[i]);
+
+        //full batches are kept by the file when there is no insert stage
+        file.correctRows.clear();
+    }
+
+    @Benchmark
+    public void cell() {
+        for (int i = 0; i < ROWS; i++)
+            sheet.rowToData(rows[i]);
+
+        file.correctRows.clear();
+    }
+}
@@ -0,0 +1,601 @@
+package com.waveconn;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert stage of the import
+ *
+ * Batches of validated rows are put on a bounded queue and INSERT_THREADS writers take them off.
+ * Each writer has its own connection and PreparedStatement and commits every batch it inserts.
+ * The reader can keep parsing while the writers are busy with the DB; when the queue is full
+ * the reader blocks, so no more than QUEUE_SIZE batches are waiting in memory.
+ *
+ * With more than one writer the rows are not inserted in Excel order.
+ * Every batch carries the ImportPlan of its sheet, so one writer can insert into several tables.
+ *
+ * Batches are inserted with multi-row INSERT statements, see InsertStatementCache.
+ * With WRITE_MODE=UPSERT the statements update rows whose key is already in the table instead,
+ * with INSERT ... ON DUPLICATE KEY UPDATE; LOAD_MODE=LOAD_DATA is not used with it, see Excel2MySQL.init().
+ *
+ * With LOAD_MODE=LOAD_DATA each batch is encoded as a tab separated stream in memory and sent
+ * with LOAD DATA LOCAL INFILE through the Connector/J local infile stream, no file is written.
+ * Rows it skips or loads with a warning are rejected like rows that fail an INSERT.
+ *
+ * With CHECKPOINT_TABLE set the row range of each batch is recorded in the transaction of the batch.
+ * With DELTA_TABLE set so are the fingerprints of its new rows, see Delta.
+ *
+ * When the DB rejects a batch, it is rolled back and sent again in halves, each half under a savepoint,
+ * down to the single rows that fail. Those rows go to the error rows of their sheet with the SQL error,
+ * the rest of the batch is committed as usual. Errors of the connection or the transaction itself
+ * still stop the insert. So does any other error of a writer, which finish() throws to the reader;
+ * batches submitted after the insert has stopped are discarded, so the reader never blocks on the queue.
+ *
+ */
+class BatchInserter {
+    //marks the end of input on the queue, one for each writer
+    private static final RowBatch END_OF_ROWS = new RowBatch(new ImportPlan(null, new ArrayList()), null, 0);
+
+    private final String db_url;
+    private final String db_user_name;
+    private final String db_password;
+    //null if each writer opens its own connection
+    private final ConnectionPool pool;
+    private final boolean load_data;
+    private final int rows_per_insert;
+    private final int bulk_size;
+    //null if no checkpoints are kept
+    private final String checkpoint_insert;
+    //null if no fingerprints are kept
+    private final String delta_insert;
+
+    private final ImportMetrics metrics;
+
+    private final BlockingQueue<RowBatch> queue;
+    private final List<Writer> writers = new ArrayList();
+
+    //set when a writer fails, the remaining batches are discarded
+    private volatile boolean stopped = false;
+    //first error other than an SQLException which ended a writer, thrown to the reader by finish()
+    private volatile Throwable failure = null;
+
+    BatchInserter(Excel2MySQL app) {
+        this.db_url = app.db_url;
+        this.db_user_name = app.db_user_name;
+        this.db_password = app.db_password;
+        this.pool = app.pool;
+        this.load_data = "LOAD_DATA".equals(app.load_mode);
+        this.rows_per_insert = app.rows_per_insert;
+        this.bulk_size = app.bulk_size;
+        this.checkpoint_insert = app.checkpoint == null ? null : app.checkpoint.getInsertString();
+        this.delta_insert = app.delta == null ? null : app.delta.getInsertString();
+        this.metrics = app.metrics;
+
+        queue = new ArrayBlockingQueue(Math.max(app.queue_size, 1));
+
+        int threads = Math.max(app.insert_threads, 1);
+        for (int i = 1; i <= threads; i++)
+            writers.add(new Writer("writer-" + i));
+    }
+
+    //a writer failed and the batches after it were discarded
+    boolean isStopped() {
+        return stopped;
+    }
+
+    void start() {
+        for (Writer w : writers)
+            w.thread.start();
+    }
+
+    //queue a batch for insert, blocks while the queue is full;
+    //once the insert has stopped the batch is discarded instead
+    void submit(RowBatch batch) {
+        if (stopped || !put(batch))
+            batch.sheet.batchInserted(batch, 0);
+    }
+
+    //wait until all queued batches are inserted and return the number of committed rows;
+    //an error which ended a writer is thrown here
+    int finish() {
+        for (Writer w : writers)
+            put(END_OF_ROWS);
+
+        int total = 0;
+        for (Writer w : writers) {
+            try {
+                w.thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Excel2MySQL.exit(-11);
+            }
+
+            System.out.println(w.name + " committed " + w.committed + " rows");
+            total += w.committed;
+        }
+
+        System.out.println("total insert " + total + " rows");
+
+        Throwable f = failure;
+        if (f instanceof RuntimeException)
+            throw (RuntimeException) f;
+        if (f instanceof Error)
+            throw (Error) f;
+
+        return total;
+    }
+
+    //queue a batch while any writer is still there to take it, returns false if none is
+    private boolean put(RowBatch batch) {
+        try {
+            while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                if (writers.stream().noneMatch(w -> w.thread.isAlive()))
+                    return false;
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Excel2MySQL.exit(-11);
+        }
+
+        return true;
+    }
+
+    //one DB connection taking batches off the queue until it sees END_OF_ROWS
+    private class Writer implements Runnable {
+        final String name;
+        final Thread thread;
+        int committed = 0;
+
+        //rows of the current batch rejected by the DB
+        private final List<Rejected> rejected = new ArrayList();
+
+        Writer(String name) {
+            this.name = name;
+            this.thread = new Thread(this, name);
+        }
+
+        @Override
+        public void run() {
+            try {
+                insert();
+            } catch (RuntimeException | Error e) {
+                //from binding, the error file or Excel2MySQL.exit() in a server; the open transaction
+                //is rolled back when its connection is closed
+                System.out.println(name + ": insert stopped, " + e);
+                synchronized (BatchInserter.this) {
+                    if (failure == null)
+                        failure = e;
+                }
+                stopped = true;
+                drain();
+            }
+        }
+
+        private void insert() {
+            boolean failed = false;
+
+            Properties info = new Properties();
+            info.setProperty("user", db_user_name);
+            info.setProperty("password", db_password);
+            if (load_data)
+                info.setProperty("allowLoadLocalInfile", "true");
+
+            try (Connection con = pool == null ? DriverManager.getConnection(db_url, info) : pool.getConnection(db_url, info)) {
+
+                con.setAutoCommit(false);
+
+                try (InsertStatementCache insertRows = load_data ? null :
+                        new InsertStatementCache(con, rows_per_insert, bulk_size);
+                     Statement loadRows = load_data ? con.createStatement() : null;
+                     PreparedStatement saveCheckpoint = checkpoint_insert == null ? null :
+                             con.prepareStatement(checkpoint_insert);
+                     PreparedStatement saveFingerprints = delta_insert == null ? null :
+                             con.prepareStatement(delta_insert)) {
+                    RowBatch batch;
+                    while ((batch = queue.take()) != END_OF_ROWS) {
+                        int done = 0;
+                        rejected.clear();
+                        try {
+                            //another writer failed
+                            if (stopped)
+                                continue;
+
+                            long start = System.nanoTime();
+                            //a batch emptied by deduplication only commits its checkpoint
+                            int inserted = batch.isEmpty() ? 0 : send(con, insertRows, loadRows, batch);
+
+                            long commitStart = System.nanoTime();
+                            if (saveCheckpoint != null)
+                                saveCheckpoint(saveCheckpoint, batch);
+                            if (saveFingerprints != null)
+                                saveFingerprints(saveFingerprints, batch);
+
+                            con.commit();
+                            long end = System.nanoTime();
+                            metrics.add(ImportMetrics.Phase.COMMIT, end - commitStart);
+
+                            for (Rejected r : rejected)
+                                batch.sheet.rowRejected(batch, r.row, r.message);
+
+                            done = batch.size() - rejected.size();
+                            committed += done;
+                            metrics.batchCommitted(done, rejected.size(), end - start);
+
+                            System.out.println(name + ": batch insert " + inserted + " rows"
+                                    + (rejected.isEmpty() ? "" : ", " + rejected.size() + " rows rejected"));
+                        } finally {
+                            batch.sheet.batchInserted(batch, done);
+                        }
+                    }
+                } catch (SQLException e) {
+                    System.out.println(name + ": insert stopped, SQLState " + e.getSQLState() + ", " + getMessage(e));
+                    //turning auto-commit on would commit the rows of the batch without its checkpoint and fingerprints
+                    rollback(con);
+                    failed = stopped = true;
+                }
+
+                con.setAutoCommit(true);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                //a server only fails this import, its batches are discarded
+                if (!Excel2MySQL.server)
+                    System.exit(-10);
+                failed = stopped = true;
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Excel2MySQL.exit(-11);
+            }
+
+            //the insert stopped on an error, keep draining so the reader is not blocked
+            if (failed)
+                drain();
+        }
+
+        private void rollback(Connection con) {
+            try {
+                con.rollback();
+            } catch (SQLException e) {
+                System.out.println(name + ": rollback failed, " + getMessage(e));
+            }
+        }
+
+        //send a batch; if the DB rejects it, roll back and find the rows it rejects by bisection
+        private int send(Connection con, InsertStatementCache insertRows, Statement loadRows, RowBatch batch)
+                throws SQLException {
+            try {
+                return send(insertRows, loadRows, batch, 0, batch.size());
+            } catch (SQLException e) {
+                if (!isRowError(e))
+                    throw e;
+
+                System.out.println(name + ": batch failed, " + getMessage(e) + ", retrying in halves");
+                con.rollback();
+                return bisect(con, insertRows, loadRows, batch, 0, batch.size(), e);
+            }
+        }
+
+        //rows from..to failed with e, try each half on its own
+        private int bisect(Connection con, InsertStatementCache insertRows, Statement loadRows, RowBatch batch,
+                           int from, int to, SQLException e) throws SQLException {
+            if (to - from == 1) {
+                rejected.add(new Rejected(from, getMessage(e)));
+                return 0;
+            }
+
+            int mid = (from + to) >>> 1;
+            return retry(con, insertRows, loadRows, batch, from, mid)
+                    + retry(con, insertRows, loadRows, batch, mid, to);
+        }
+
+        //record the fingerprints of the rows of a batch the DB took, committed together with the batch
+        private void saveFingerprints(PreparedStatement ps, RowBatch batch) throws SQLException {
+            BitSet skip = new BitSet();
+            for (Rejected r : rejected)
+                skip.set(r.row);
+
+            boolean any = false;
+            for (int row = 0; row < batch.size(); row++) {
+                long fingerprint = batch.getFingerprint(row);
+                if (fingerprint == 0 || skip.get(row))
+                    continue;
+
+                ps.setString(1, batch.plan.getDb_table());
+                ps.setLong(2, fingerprint);
+                ps.addBatch();
+                any = true;
+            }
+
+            if (any)
+                ps.executeBatch();
+        }
+
+        private int retry(Connection con, InsertStatementCache insertRows, Statement loadRows, RowBatch batch,
+                          int from, int to) throws SQLException {
+            Savepoint savepoint = con.setSavepoint();
+            try {
+                return send(insertRows, loadRows, batch, from, to);
+            } catch (SQLException e) {
+                if (!isRowError(e))
+                    throw e;
+
+                con.rollback(savepoint);
+                return bisect(con, insertRows, loadRows, batch, from, to, e);
+            }
+        }
+
+        private int send(InsertStatementCache insertRows, Statement loadRows, RowBatch batch, int from, int to)
+                throws SQLException {
+            return load_data ? loadBatch(loadRows, batch, from, to) : insertBatch(insertRows, batch, from, to);
+        }
+    }
+
+    //a row of a batch rejected by the DB
+    private static class Rejected {
+        final int row;
+        final String message;
+
+        Rejected(int row, String message) {
+            this.row = row;
+            this.message = message;
+        }
+    }
+
+    //an error caused by the rows sent, not by the connection or the transaction
+    private static boolean isRowError(SQLException e) {
+        String state = e.getSQLState();
+        return state == null || !(state.startsWith("08") || state.startsWith("40"));
+    }
+
+    private static String getMessage(SQLException e) {
+        SQLException next = e.getNextException();
+        return next != null ? next.getMessage() : e.getMessage();
+    }
+
+    private void drain() {
+        try {
+            RowBatch batch;
+            while ((batch = queue.take()) != END_OF_ROWS) {
+                //discard
+                batch.sheet.batchInserted(batch, 0);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Excel2MySQL.exit(-11);
+        }
+    }
+
+    //record the sheet rows of a batch, committed together with the batch
+    private static void saveCheckpoint(PreparedStatement ps, RowBatch batch) throws SQLException {
+        ps.setString(1, batch.sheet.file.file_hash);
+        ps.setString(2, batch.sheet.sheetName);
+        ps.setInt(3, batch.getFirstRow());
+        ps.setInt(4, batch.getLastRow());
+        ps.executeUpdate();
+    }
+
+    //bind and execute rows from..to of a batch, returns the update count reported by the driver
+    private int insertBatch(InsertStatementCache insertRows, RowBatch batch, int from, int to) throws SQLException {
+        ImportPlan plan = batch.plan;
+        int rowsPerStatement = insertRows.getRowsPerStatement(plan);
+        int full = (to - from) / rowsPerStatement;
+        int tail = (to - from) % rowsPerStatement;
+
+        int total = 0;
+        int j = from;
+
+        //statements of full size go in one JDBC batch
+        if (full > 0) {
+            long start = System.nanoTime();
+            PreparedStatement ps = insertRows.get(plan, rowsPerStatement);
+            try {
+                for (int k = 0; k < full; k++) {
+                    for (int r = 0; r < rowsPerStatement; r++)
+                        bindRow(ps, r * plan.size(), batch, j++);
+                    ps.addBatch();
+                }
+                total += execute(ps, start);
+            } finally {
+                insertRows.release(plan, rowsPerStatement, ps);
+            }
+        }
+
+        //the rest of the batch
+        if (tail > 0) {
+            long start = System.nanoTime();
+            PreparedStatement ps = insertRows.get(plan, tail);
+            try {
+                for (int r = 0; r < tail; r++)
+                    bindRow(ps, r * plan.size(), batch, j++);
+                ps.addBatch();
+                total += execute(ps, start);
+            } finally {
+                insertRows.release(plan, tail, ps);
+            }
+        }
+
+        return total;
+    }
+
+    //execute the statements bound since start, the time before is counted as binding
+    private int execute(PreparedStatement ps, long start) throws SQLException {
+        long bound = System.nanoTime();
+        metrics.add(ImportMetrics.Phase.BIND, bound - start);
+        try {
+            return sum(ps.executeBatch());
+        } finally {
+            metrics.add(ImportMetrics.Phase.EXECUTE, System.nanoTime() - bound);
+        }
+    }
+
+    //bind one row starting after parameter offset
+    private void bindRow(PreparedStatement ps, int offset, RowBatch batch, int row) throws SQLException {
+        ImportPlan plan = batch.plan;
+        for (int c = 0; c < plan.size(); c++) {
+            int param_index = offset + c + 1;
+            Type type = plan.getType(c);
+
+            if (batch.isNull(c, row)) {
+                ps.setNull(param_index, getSqlType(type));
+                continue;
+            }
+
+            switch (type) {
+                case INTEGER:
+                    ps.setLong(param_index, batch.getLong(c, row));
+                    break;
+                case NUMBER:
+                    ps.setDouble(param_index, batch.getDouble(c, row));
+                    break;
+                case DATE:
+                    setDate(ps, param_index, batch.getLong(c, row));
+                    break;
+                case STRING:
+                    ps.setString(param_index, batch.getString(c, row));
+                    break;
+                case BOOLEAN:
+                    if (plan.isBit(c))
+                        ps.setInt(param_index, RowValidator.isTrue(batch.getString(c, row)) ? 1 : 0);
+                    else
+                        ps.setString(param_index, batch.getString(c, row));
+                    break;
+            }
+        }
+    }
+
+    //a date without time of day is bound as DATE, otherwise as TIMESTAMP
+    private static void setDate(PreparedStatement ps, int param_index, long v) throws SQLException {
+        LocalDateTime t = DateParser.toDateTime(v);
+        if (DateParser.isDate(v))
+            ps.setDate(param_index, java.sql.Date.valueOf(t.toLocalDate()));
+        else
+            ps.setTimestamp(param_index, Timestamp.valueOf(t));
+    }
+
+    private static int getSqlType(Type type) {
+        switch (type) {
+            case INTEGER:
+                return Types.BIGINT;
+            case NUMBER:
+                return Types.DOUBLE;
+            case DATE:
+                return Types.TIMESTAMP;
+            default:
+                return Types.VARCHAR;
+        }
+    }
+
+    private static int sum(int[] numUpdates) {
+        int total = 0;
+        for (int n : numUpdates)
+            if (n > 0) total += n;
+
+        return total;
+    }
+
+    //stream rows from..to of a batch through LOAD DATA LOCAL INFILE, returns the number of loaded rows
+    private int loadBatch(Statement loadRows, RowBatch batch, int from, int to) throws SQLException {
+        long start = System.nanoTime();
+        byte[] tsv = toTsv(batch, from, to);
+
+        loadRows.unwrap(com.mysql.jdbc.Statement.class)
+                .setLocalInfileInputStream(new ByteArrayInputStream(tsv));
+
+        long bound = System.nanoTime();
+        metrics.add(ImportMetrics.Phase.BIND, bound - start);
+        try {
+            int loaded = loadRows.executeUpdate(batch.plan.getLoadDataString());
+            checkLoaded(loadRows, to - from, loaded);
+            return loaded;
+        } finally {
+            metrics.add(ImportMetrics.Phase.EXECUTE, System.nanoTime() - bound);
+        }
+    }
+
+    //LOAD DATA LOCAL works as with IGNORE: rows of a duplicate key are skipped and values which do not fit
+    //are converted, with a warning instead of an error. Either one fails the rows sent, so they are sent
+    //again in halves down to the rows at fault, which are rejected the same as with INSERT
+    private static void checkLoaded(Statement loadRows, int rows, int loaded) throws SQLException {
+        SQLWarning warning = loadRows.getWarnings();
+        loadRows.clearWarnings();
+        if (warning != null)
+            throw new SQLException(warning.getMessage(), "HY000", warning.getErrorCode());
+
+        if (loaded < rows)
+            throw new SQLException((rows - loaded) + " rows skipped by LOAD DATA", "HY000");
+    }
+
+    //encode rows in plan column order as tab separated lines in the default LOAD DATA escaping
+    private byte[] toTsv(RowBatch batch, int from, int to) {
+        ImportPlan plan = batch.plan;
+        StringBuilder tsv = new StringBuilder((to - from) * plan.size() * 16);
+        for (int row = from; row < to; row++) {
+            for (int c = 0; c < plan.size(); c++) {
+                if (c > 0)
+                    tsv.append('\t');
+
+                if (batch.isNull(c, row)) {
+                    tsv.append("\\N");
+                    continue;
+                }
+
+                switch (plan.getType(c)) {
+                    case INTEGER:
+                        tsv.append(batch.getLong(c, row));
+                        break;
+                    case NUMBER:
+                        tsv.append(batch.getDouble(c, row));
+                        break;
+                    case DATE:
+                        tsv.append(DateParser.format(batch.getLong(c, row)));
+                        break;
+                    case STRING:
+                        escape(tsv, batch.getString(c, row));
+                        break;
+                    case BOOLEAN:
+                        if (plan.isBit(c))
+                            tsv.append(RowValidator.isTrue(batch.getString(c, row)) ? '1' : '0');
+                        else
+                            escape(tsv, batch.getString(c, row));
+                        break;
+                }
+            }
+            tsv.append('\n');
+        }
+
+        return tsv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void escape(StringBuilder tsv, String v) {
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            switch (c) {
+                case '\\':
+                    tsv.append("\\\\");
+                    break;
+                case '\t':
+                    tsv.append("\\t");
+                    break;
+                case '\n':
+                    tsv.append("\\n");
+                    break;
+                case '\r':
+                    tsv.append("\\r");
+                    break;
+                case '\0':
+                    tsv.append("\\0");
+                    break;
+                default:
+                    tsv.append(c);
+            }
+        }
+    }
+}
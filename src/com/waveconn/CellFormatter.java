@@ -0,0 +1,146 @@
+package com.waveconn;
+
+import org.apache.poi.ss.usermodel.*;
+
+import java.text.Format;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Cell formatting with the number format of each cell style resolved once
+ *
+ * DataFormatter looks up the style, its format string and its Format again for every cell.
+ * Here they are kept by cell style index, for at most MAX_STYLES styles, so a numeric cell
+ * costs a map lookup and Format.format(). Text cells are returned as they are.
+ *
+ * Formats whose result depends on the value (several sections, or # only with empty zero)
+ * and date cells outside the Excel date range are left to DataFormatter, so the output is
+ * the same as DataFormatter.formatCellValue(). The first date of each style goes through
+ * DataFormatter too, which keeps its own cache the same as it would without this layer.
+ * Format objects are not thread-safe, so each sheet has its own CellFormatter.
+ *
+ */
+class CellFormatter {
+    //styles kept, least recently used ones are dropped
+    static final int MAX_STYLES = 256;
+
+    private static final Pattern EXPONENT = Pattern.compile("E(\\d)");
+
+    private final DataFormatter formatter;
+
+    private final Map<Short, StyleFormat> styles = new LinkedHashMap<Short, StyleFormat>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Short, StyleFormat> eldest) {
+            return size() > MAX_STYLES;
+        }
+    };
+
+    CellFormatter(DataFormatter formatter) {
+        this.formatter = formatter;
+    }
+
+    //same as DataFormatter.formatCellValue(cell) for cells other than formulas
+    String format(Cell cell) {
+        switch (cell.getCellTypeEnum()) {
+            case STRING:
+                return cell.getRichStringCellValue().getString();
+            case NUMERIC:
+                return format(cell, cell.getNumericCellValue(), false);
+            default:
+                return formatter.formatCellValue(cell);
+        }
+    }
+
+    //same as DataFormatter.formatRawCellContents() for the cached number result of a formula cell
+    String formatCachedResult(Cell cell) {
+        return format(cell, cell.getNumericCellValue(), true);
+    }
+
+    private String format(Cell cell, double value, boolean formula) {
+        StyleFormat style = getStyleFormat(cell);
+        if (style.byValue)
+            return formatByDataFormatter(cell, value, style, formula);
+
+        if (style.date) {
+            if (!DateUtil.isValidExcelDate(value))
+                return formatByDataFormatter(cell, value, style, formula);
+
+            if (style.format == null) {
+                style.format = formatter.createFormat(cell);
+                return formatByDataFormatter(cell, value, style, formula);
+            }
+
+            if (style.format instanceof ExcelStyleDateFormatter)
+                ((ExcelStyleDateFormatter) style.format).setDateToBeFormatted(value);
+
+            //the date of the cell takes the 1904 date system of the workbook into account
+            Date d = cell.getDateCellValue();
+            return style.format == null ? d.toString() : style.format.format(d);
+        }
+
+        if (style.format == null)
+            return String.valueOf(value);
+
+        String v = style.format.format(value);
+        return v.indexOf('E') < 0 ? v : EXPONENT.matcher(v).replaceFirst("E+$1");
+    }
+
+    private String formatByDataFormatter(Cell cell, double value, StyleFormat style, boolean formula) {
+        if (formula)
+            return formatter.formatRawCellContents(value, style.formatIndex, style.formatString);
+
+        return formatter.formatCellValue(cell);
+    }
+
+    //a numeric cell shown as a date, same as DateUtil.isCellDateFormatted()
+    boolean isDate(Cell cell) {
+        return getStyleFormat(cell).date && DateUtil.isValidExcelDate(cell.getNumericCellValue());
+    }
+
+    private StyleFormat getStyleFormat(Cell cell) {
+        CellStyle cellStyle = cell.getCellStyle();
+        StyleFormat style = styles.get(cellStyle.getIndex());
+        if (style == null) {
+            style = new StyleFormat(cell, cellStyle);
+            styles.put(cellStyle.getIndex(), style);
+        }
+
+        return style;
+    }
+
+    //number format of one cell style
+    private class StyleFormat {
+        final int formatIndex;
+        final String formatString;
+        final boolean date;
+        //left to DataFormatter for each value
+        final boolean byValue;
+        //resolved with the first value in the date range for dates
+        Format format;
+
+        StyleFormat(Cell cell, CellStyle cellStyle) {
+            formatIndex = cellStyle.getDataFormat();
+            formatString = cellStyle.getDataFormatString();
+
+            if (formatString == null || formatString.trim().isEmpty()) {
+                date = false;
+                byValue = false;
+                format = null;
+                return;
+            }
+
+            date = DateUtil.isADateFormat(formatIndex, formatString);
+            byValue = formatString.contains(";")
+                    || formatString.contains("#") && !formatString.contains("0");
+
+            if (byValue || date)
+                format = null;
+            else if ("General".equalsIgnoreCase(formatString) || "@".equals(formatString))
+                format = formatter.getDefaultFormat(cell);
+            else
+                format = formatter.createFormat(cell);
+        }
+    }
+}
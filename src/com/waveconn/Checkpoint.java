@@ -0,0 +1,188 @@
+package com.waveconn;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Checkpoints of imported rows, kept in CHECKPOINT_TABLE of the target DB
+ *
+ * Files are identified by the SHA-256 of their content, so a renamed or copied file is still known.
+ * Each committed batch adds a row (file_hash, sheet_name, first_row, last_row) in the same transaction
+ * as its rows, so the table never claims rows which are not in the DB and never misses rows which are.
+ * A sheet whose batches are all committed gets a marker with first_row -1, a file whose sheets are all
+ * done gets one with an empty sheet name.
+ *
+ * With RESUME=true a file marked done is not read, a sheet marked done is not parsed, and rows
+ * inside a committed range are skipped before validation. Without RESUME the checkpoints of the
+ * file are cleared and it is imported from the first row.
+ *
+ * Files of the same content are the same file to the checkpoints, so only the first of them is
+ * imported in one run.
+ *
+ */
+class Checkpoint implements AutoCloseable {
+    //sheet name of the marker of a whole file
+    static final String FILE_DONE = "";
+    static final int DONE = -1;
+
+    private final String table;
+    private final boolean resume;
+    private final Connection con;
+
+    //hashes of the files imported in this run
+    private final Set<String> claimed = new HashSet();
+
+    Checkpoint(Excel2MySQL app) throws SQLException {
+        this.table = app.checkpoint_table;
+        this.resume = app.resume;
+
+        con = app.getConnection();
+
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + table + " ("
+                    + "file_hash CHAR(64) NOT NULL, "
+                    + "sheet_name VARCHAR(255) NOT NULL, "
+                    + "first_row INT NOT NULL, "
+                    + "last_row INT NOT NULL, "
+                    + "PRIMARY KEY (file_hash, sheet_name, first_row))");
+        }
+    }
+
+    //statement adding the range of a committed batch, run by the writers in the batch transaction
+    String getInsertString() {
+        return "INSERT INTO " + table + " (file_hash, sheet_name, first_row, last_row) VALUES (?, ?, ?, ?)";
+    }
+
+    //take a file for this run, false if a file of the same content was taken already
+    synchronized boolean claim(String file_hash) {
+        return claimed.add(file_hash);
+    }
+
+    //checkpoints of a file from an earlier run, or none if the file is imported from the start
+    synchronized Progress load(String file_hash) throws SQLException {
+        Progress progress = new Progress();
+
+        if (!resume) {
+            try (PreparedStatement ps = con.prepareStatement("DELETE FROM " + table + " WHERE file_hash = ?")) {
+                ps.setString(1, file_hash);
+                ps.executeUpdate();
+            }
+
+            return progress;
+        }
+
+        try (PreparedStatement ps = con.prepareStatement("SELECT sheet_name, first_row, last_row FROM " + table
+                + " WHERE file_hash = ? ORDER BY sheet_name, first_row")) {
+            ps.setString(1, file_hash);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String sheet = rs.getString(1);
+                    int first = rs.getInt(2);
+                    int last = rs.getInt(3);
+
+                    if (first == DONE)
+                        progress.done.add(sheet);
+                    else
+                        progress.committed.computeIfAbsent(sheet, s -> new Ranges()).add(first, last);
+                }
+            }
+        }
+
+        return progress;
+    }
+
+    //mark a sheet, or the whole file with FILE_DONE, as completely imported
+    synchronized void markDone(String file_hash, String sheet_name) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(getInsertString())) {
+            ps.setString(1, file_hash);
+            ps.setString(2, sheet_name);
+            ps.setInt(3, DONE);
+            ps.setInt(4, DONE);
+            ps.executeUpdate();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws SQLException {
+        con.close();
+    }
+
+    //SHA-256 of the file content in hex
+    static String hash(String path) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try (InputStream in = new FileInputStream(path)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                md.update(buf, 0, n);
+        }
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : md.digest())
+            hex.append(String.format("%02x", b));
+
+        return hex.toString();
+    }
+
+    //what an earlier run of a file has committed
+    static class Progress {
+        //sheets marked done, FILE_DONE if the whole file is
+        final Set<String> done = new HashSet();
+        final Map<String, Ranges> committed = new HashMap();
+
+        //nothing committed by an earlier run
+        boolean isEmpty() {
+            return done.isEmpty() && committed.isEmpty();
+        }
+
+        boolean isFileDone() {
+            return done.contains(FILE_DONE);
+        }
+
+        boolean isSheetDone(String sheet_name) {
+            return done.contains(sheet_name);
+        }
+
+        Ranges getCommitted(String sheet_name) {
+            return committed.get(sheet_name);
+        }
+    }
+
+    //row ranges of committed batches of one sheet, sorted by first row
+    static class Ranges {
+        private int[] firsts = new int[8];
+        private int[] lasts = new int[8];
+        private int size = 0;
+
+        //rows are looked up in increasing order, so the search goes on from the last range found
+        private int cursor = 0;
+
+        private void add(int first, int last) {
+            if (size == firsts.length) {
+                firsts = Arrays.copyOf(firsts, size * 2);
+                lasts = Arrays.copyOf(lasts, size * 2);
+            }
+
+            firsts[size] = first;
+            lasts[size] = last;
+            size++;
+        }
+
+        boolean contains(int row) {
+            while (cursor < size && lasts[cursor] < row)
+                cursor++;
+
+            return cursor < size && firsts[cursor] <= row;
+        }
+    }
+}
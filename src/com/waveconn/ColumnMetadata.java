@@ -0,0 +1,263 @@
+package com.waveconn;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Types and lengths of the mapped columns taken from the DB metadata, for COLUMN_TYPES=DB
+ *
+ * The columns of each DB table are read with DatabaseMetaData.getColumns(), so the Type of each mapped
+ * column follows its SQL type and a STRING column is truncated at the length the table really has,
+ * not at COL_X_LEN or the default. A mapped column the table does not have keeps what the init file says.
+ * A BOOL column stays BOOL on a string or bit column, so its values are still checked as booleans;
+ * only the length of a string column is taken from the table. On a BIT(1) or TINYINT(1) column its values
+ * are sent as 1 or 0, see ImportPlan.isBit(); other TINYINT and BIT columns are INTEGER.
+ *
+ * With PLAN_CACHE set the resolved columns are kept in that file together with the schema version of
+ * the table, a SHA-1 digest of the name, type, length and nullability of each of its columns in
+ * information_schema.COLUMNS. Each run reads the version with one query; while it is the same the columns
+ * are taken from the file, and any ALTER TABLE which changes a column changes the version. On a DB without
+ * information_schema nothing is cached.
+ *
+ * The server keeps the plans of a profile between imports, see ImportServer, and resolves the columns
+ * again only once the init file changes; touch it after an ALTER TABLE.
+ *
+ */
+class ColumnMetadata {
+    private final Excel2MySQL app;
+    private final String plan_cache;
+
+    //resolved columns by db_url/db_table, see getPrefix()
+    private final Properties cache = new Properties();
+
+    ColumnMetadata(Excel2MySQL app) {
+        this.app = app;
+        this.plan_cache = app.plan_cache;
+
+        if (!plan_cache.isEmpty() && new File(plan_cache).isFile()) {
+            try (InputStream in = new FileInputStream(plan_cache)) {
+                cache.load(in);
+            } catch (IOException e) {
+                System.out.println("Plan cache not read, " + e);
+            }
+        }
+    }
+
+    //copy of dbMap with the type and length of each column as declared in db_table
+    synchronized ArrayList<Mapping> resolve(String db_table, List<Mapping> dbMap) {
+        Map<String, String> columns = null;
+
+        try (Connection con = app.getConnection()) {
+            String version = plan_cache.isEmpty() ? null : getVersion(con, db_table);
+            String prefix = getPrefix(db_table);
+
+            if (version != null && version.equals(cache.getProperty(prefix + "version")))
+                columns = fromCache(prefix, dbMap);
+
+            if (columns != null) {
+                System.out.println("Column types of " + db_table + " taken from " + plan_cache);
+            } else {
+                columns = readColumns(con, db_table);
+                System.out.println("Column types of " + db_table + " read from DB metadata");
+
+                if (version != null)
+                    save(prefix, version, columns);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Excel2MySQL.exit(-10);
+        }
+
+        ArrayList<Mapping> resolved = new ArrayList();
+        for (Mapping m : dbMap) {
+            Mapping r = new Mapping(m.getExcel_sym(), m.getDb_col());
+            r.setType(m.getType());
+            r.setLen(m.getLen());
+            r.setKey(m.isKey());
+            r.setFormat(m.getFormat());
+
+            String column = columns.get(m.getDb_col().trim().toLowerCase());
+            if (column == null) {
+                System.out.println("Column " + m.getDb_col() + " not found in " + db_table + ", type from the init file");
+            } else {
+                String[] v = column.split(",");
+                Type type = Type.valueOf(v[0]);
+                boolean bit = v.length > 2 && "BIT".equals(v[2]);
+                if (m.getType() == Type.BOOLEAN && (type == Type.STRING || bit)) {
+                    //still checked as a boolean, a string column gives its length
+                    if (type == Type.STRING)
+                        r.setLen(Integer.parseInt(v[1]));
+                    r.setBit(bit);
+                } else {
+                    r.setType(type);
+                    r.setLen(Integer.parseInt(v[1]));
+                }
+            }
+
+            System.out.println("COL_" + r.getExcel_sym() + "   " + r.getDb_col() + "   " + r.getType() + "   " + r.getLen());
+            resolved.add(r);
+        }
+
+        return resolved;
+    }
+
+    private String getPrefix(String db_table) {
+        return app.db_url + "/" + db_table + ".";
+    }
+
+    //digest of the columns of the table in information_schema, null if the DB does not have them
+    private static String getVersion(Connection con, String db_table) {
+        //the schema is the catalog in MySQL
+        String sql = "SELECT COLUMN_NAME, COLUMN_TYPE, DATA_TYPE, CHARACTER_MAXIMUM_LENGTH, NUMERIC_PRECISION,"
+                + " NUMERIC_SCALE, IS_NULLABLE FROM information_schema.COLUMNS"
+                + " WHERE TABLE_SCHEMA IN (?, ?) AND TABLE_NAME IN (?, ?, ?) ORDER BY ORDINAL_POSITION";
+        try (PreparedStatement ps = con.prepareStatement(sql)) {
+            ps.setString(1, con.getCatalog());
+            ps.setString(2, con.getSchema());
+            //the DB may keep unquoted names in upper or lower case
+            ps.setString(3, db_table);
+            ps.setString(4, db_table.toUpperCase());
+            ps.setString(5, db_table.toLowerCase());
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            boolean any = false;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    for (int i = 1; i <= 7; i++)
+                        digest.update((rs.getString(i) + "\t").getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) '\n');
+                    any = true;
+                }
+            }
+
+            if (any)
+                return toHex(digest.digest());
+        } catch (SQLException | AbstractMethodError e) {
+            //no information_schema, or a driver before JDBC 4.1 without getSchema()
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        System.out.println("No schema version of " + db_table + ", column types are not cached");
+        return null;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+        return hex.toString();
+    }
+
+    //cached columns, null if a mapped column is not among them
+    private Map<String, String> fromCache(String prefix, List<Mapping> dbMap) {
+        Map<String, String> columns = new HashMap();
+        for (Mapping m : dbMap) {
+            String col = m.getDb_col().trim().toLowerCase();
+            String column = cache.getProperty(prefix + "col." + col);
+            if (column == null)
+                return null;
+
+            columns.put(col, column);
+        }
+
+        return columns;
+    }
+
+    //"TYPE,LEN" of each column of the table by lower case column name, "TYPE,LEN,BIT" for boolean columns
+    private static Map<String, String> readColumns(Connection con, String db_table) throws SQLException {
+        DatabaseMetaData meta = con.getMetaData();
+
+        //the DB may keep unquoted names in upper or lower case
+        Map<String, String> columns = new HashMap();
+        for (String name : new String[]{db_table, db_table.toUpperCase(), db_table.toLowerCase()}) {
+            //_ and % in a table name are not wildcards
+            String pattern = escape(name, meta.getSearchStringEscape());
+            try (ResultSet rs = meta.getColumns(con.getCatalog(), null, pattern, "%")) {
+                while (rs.next()) {
+                    int sqlType = rs.getInt("DATA_TYPE");
+                    Type type = getType(sqlType);
+                    int len = type == Type.STRING ? rs.getInt("COLUMN_SIZE") : -1;
+                    if (len <= 0)
+                        len = Excel2MySQL.DB_STRING_LEN_DEFAULT;
+
+                    columns.put(rs.getString("COLUMN_NAME").toLowerCase(),
+                            type.name() + "," + len + (isBit(sqlType, rs.getInt("COLUMN_SIZE")) ? ",BIT" : ""));
+                }
+            }
+
+            if (!columns.isEmpty())
+                break;
+        }
+
+        if (columns.isEmpty())
+            System.out.println("Table " + db_table + " not found in DB metadata");
+
+        return columns;
+    }
+
+    //name as a getColumns() pattern which matches only itself
+    static String escape(String name, String escape) {
+        if (escape == null || escape.isEmpty())
+            return name;
+
+        StringBuilder pattern = new StringBuilder(name.length() + 8);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '_' || c == '%' || name.startsWith(escape, i))
+                pattern.append(escape);
+            pattern.append(c);
+        }
+
+        return pattern.toString();
+    }
+
+    //Type validating values of a column of SQL type sqlType
+    static Type getType(int sqlType) {
+        switch (sqlType) {
+            case Types.BIGINT:
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return Type.INTEGER;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return Type.NUMBER;
+            case Types.DATE:
+            case Types.TIMESTAMP:
+                return Type.DATE;
+            default:
+                return Type.STRING;
+        }
+    }
+
+    //a column of one bit, TINYINT(1) is reported as BIT by Connector/J; BIT(8) or TINYINT(4) hold numbers
+    private static boolean isBit(int sqlType, int size) {
+        return (sqlType == Types.BIT || sqlType == Types.BOOLEAN || sqlType == Types.TINYINT) && size == 1;
+    }
+
+    private void save(String prefix, String version, Map<String, String> columns) {
+        //columns of an older version of the table are dropped
+        cache.stringPropertyNames().stream().filter(key -> key.startsWith(prefix)).forEach(cache::remove);
+
+        cache.setProperty(prefix + "version", version);
+        for (Map.Entry<String, String> e : columns.entrySet())
+            cache.setProperty(prefix + "col." + e.getKey(), e.getValue());
+
+        try (OutputStream out = new FileOutputStream(plan_cache)) {
+            cache.store(out, "Excel2MySQL column types by DB table");
+        } catch (IOException e) {
+            System.out.println("Plan cache not saved, " + e);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.waveconn;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * JDBC connections kept open between the imports of the server
+ *
+ * Connections are kept by DB URL and connection properties. A connection handed out is a proxy whose close()
+ * gives the connection back instead of closing it: an open transaction is rolled back, auto-commit turned on
+ * again and the connection kept for the next import, at most POOL_SIZE idle ones for each DB.
+ * A connection taken from the pool is checked with isValid() first, so one dropped by the server is replaced.
+ *
+ */
+class ConnectionPool implements AutoCloseable {
+    //seconds isValid() waits for the DB
+    static final int VALID_TIMEOUT = 2;
+
+    private final int pool_size;
+
+    //idle connections by URL and properties, the last given back first
+    private final Map<String, Deque<Connection>> idle = new HashMap();
+    private boolean closed = false;
+
+    ConnectionPool(int pool_size) {
+        this.pool_size = Math.max(pool_size, 0);
+    }
+
+    Connection getConnection(String db_url, String db_user_name, String db_password) throws SQLException {
+        Properties info = new Properties();
+        info.setProperty("user", db_user_name);
+        info.setProperty("password", db_password);
+        return getConnection(db_url, info);
+    }
+
+    Connection getConnection(String db_url, Properties info) throws SQLException {
+        String key = db_url + " " + new TreeMap(info);
+
+        while (true) {
+            Connection con;
+            synchronized (this) {
+                Deque<Connection> connections = idle.get(key);
+                con = connections == null ? null : connections.pollFirst();
+            }
+
+            if (con == null)
+                return wrap(key, DriverManager.getConnection(db_url, info));
+
+            if (isValid(con))
+                return wrap(key, con);
+
+            quietClose(con);
+        }
+    }
+
+    private static boolean isValid(Connection con) {
+        try {
+            return con.isValid(VALID_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    //take a connection back, or close it if it is broken or enough are idle
+    private void release(String key, Connection con) {
+        try {
+            if (!con.getAutoCommit()) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            quietClose(con);
+            return;
+        }
+
+        synchronized (this) {
+            Deque<Connection> connections = idle.computeIfAbsent(key, k -> new ArrayDeque());
+            if (!closed && connections.size() < pool_size) {
+                connections.addFirst(con);
+                return;
+            }
+        }
+
+        quietClose(con);
+    }
+
+    private static void quietClose(Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            //gone already
+        }
+    }
+
+    //connection whose close() gives it back to the pool
+    private Connection wrap(String key, Connection con) {
+        InvocationHandler handler = new InvocationHandler() {
+            private boolean released = false;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!released) {
+                            released = true;
+                            release(key, con);
+                        }
+                        return null;
+                    case "isClosed":
+                        return released || con.isClosed();
+                    default:
+                        if (released)
+                            throw new SQLException("Connection closed");
+
+                        try {
+                            return method.invoke(con, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            }
+        };
+
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class[]{Connection.class}, handler);
+    }
+
+    //close the idle connections, connections still in use are closed when they are given back
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Deque<Connection> connections : idle.values())
+            for (Connection con : connections)
+                quietClose(con);
+
+        idle.clear();
+    }
+}
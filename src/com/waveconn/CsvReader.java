@@ -0,0 +1,302 @@
+package com.waveconn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * CSV or TSV file read as one sheet through a memory mapping, without POI
+ *
+ * The file is mapped WINDOW bytes at a time and rows are split in place: each field is kept as its start
+ * and end in the mapping, and becomes a String only when it is asked for. Validation asks for the mapped
+ * columns only, the other fields of a row are never decoded unless the row goes to the error file.
+ *
+ * Fields are separated by commas in .csv files and by tabs in .tsv, .tab and .txt files. A field may be
+ * quoted with double quotes, a quote inside it doubled; quoted fields may contain separators and line
+ * breaks. Rows end with LF or CRLF, empty rows are skipped and the text is read as UTF-8. The sheet is
+ * named after the file without extension. Row numbers count every row of the file, empty ones too, as Excel
+ * does when it opens the file; with IS_READ_FIRST_LINE=false the first row which is not empty is the header.
+ *
+ */
+class CsvReader implements RowSource {
+    //bytes mapped at a time, no row may be longer
+    static final int WINDOW = 256 << 20;
+
+    private final String sheetName;
+    private final boolean is_read_first_line;
+    private final byte separator;
+    //WINDOW, smaller in tests so rows cross the end of a mapped part
+    private final int window;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+
+    //the mapped part of the file starts at base and holds limit bytes
+    private MappedByteBuffer buf;
+    private ByteBuffer view;
+    private long base;
+    private int limit;
+    //the mapped part reaches the end of the file
+    private boolean last;
+
+    CsvReader(String path, boolean is_read_first_line) throws IOException {
+        this(path, is_read_first_line, WINDOW);
+    }
+
+    CsvReader(String path, boolean is_read_first_line, int window) throws IOException {
+        this.is_read_first_line = is_read_first_line;
+        this.window = window;
+
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        size = channel.size();
+
+        String name = new File(path).getName();
+        sheetName = name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+        separator = name.toLowerCase().endsWith(".csv") ? (byte) ',' : (byte) '\t';
+    }
+
+    //files read by CsvReader
+    static boolean isText(String path) {
+        String name = path.toLowerCase();
+        return name.endsWith(".csv") || name.endsWith(".tsv") || name.endsWith(".tab") || name.endsWith(".txt");
+    }
+
+    @Override
+    public List<String> getSheetNames() {
+        return Collections.singletonList(sheetName);
+    }
+
+    @Override
+    public void readSheet(String sheetName, SheetImporter importer) throws IOException {
+        CsvRow row = new CsvRow();
+
+        map(0);
+        int p = 0;
+        //UTF-8 byte order mark
+        if (limit >= 3 && buf.get(0) == (byte) 0xEF && buf.get(1) == (byte) 0xBB && buf.get(2) == (byte) 0xBF)
+            p = 3;
+
+        int rowNum = 0;
+        //the header is still to be skipped
+        boolean header = !is_read_first_line;
+        while (base + p < size) {
+            int next = row.parse(p);
+            if (next < 0) {
+                //the row goes on after the mapped part, map again from its start
+                if (p == 0)
+                    throw new IOException("Row " + (rowNum + 1) + " is longer than " + window + " bytes");
+
+                map(base + p);
+                p = 0;
+                continue;
+            }
+
+            p = next;
+            if (!row.isEmpty()) {
+                if (header)
+                    header = false;
+                else
+                    importer.rowToData(rowNum, row);
+            }
+            rowNum++;
+        }
+    }
+
+    private void map(long position) throws IOException {
+        long length = Math.min(window, size - position);
+
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        view = buf.duplicate();
+        base = position;
+        limit = (int) length;
+        last = position + length == size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            file.close();
+        }
+    }
+
+    //fields of the current row as positions in the mapping, decoded on get()
+    private class CsvRow extends AbstractList<String> implements ReusedLine {
+        private int count = 0;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        //quoted fields with doubled quotes
+        private boolean[] escaped = new boolean[16];
+
+        private byte[] bytes = new byte[256];
+
+        //split the row starting at p, returns where the next row starts or -1 if the row
+        //is not complete in the mapped part
+        int parse(int p) {
+            count = 0;
+            while (true) {
+                int start;
+                int end;
+                boolean escape = false;
+
+                if (p < limit && buf.get(p) == '"') {
+                    start = ++p;
+                    while (true) {
+                        if (p >= limit) {
+                            if (!last)
+                                return -1;
+                            //quote not closed at the end of the file
+                            end = p;
+                            break;
+                        }
+
+                        if (buf.get(p) != '"') {
+                            p++;
+                            continue;
+                        }
+
+                        if (p + 1 >= limit && !last)
+                            return -1;
+
+                        if (p + 1 < limit && buf.get(p + 1) == '"') {
+                            escape = true;
+                            p += 2;
+                            continue;
+                        }
+
+                        end = p++;
+                        break;
+                    }
+
+                    //text between the closing quote and the separator is dropped
+                    while (p < limit && !isEnd(buf.get(p)))
+                        p++;
+                } else {
+                    start = p;
+                    while (p < limit && !isEnd(buf.get(p)))
+                        p++;
+                    end = p;
+                }
+
+                add(start, end, escape);
+
+                if (p >= limit)
+                    return last ? p : -1;
+
+                byte b = buf.get(p++);
+                if (b == separator)
+                    continue;
+
+                if (b == '\r') {
+                    if (p >= limit)
+                        return last ? p : -1;
+                    if (buf.get(p) == '\n')
+                        p++;
+                }
+
+                return p;
+            }
+        }
+
+        private boolean isEnd(byte b) {
+            return b == separator || b == '\n' || b == '\r';
+        }
+
+        private void add(int start, int end, boolean escape) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                escaped = Arrays.copyOf(escaped, count * 2);
+            }
+
+            starts[count] = start;
+            ends[count] = end;
+            escaped[count] = escape;
+            count++;
+        }
+
+        //a row without any text, not a row of no fields
+        @Override
+        public boolean isEmpty() {
+            return count == 1 && starts[0] == ends[0];
+        }
+
+        @Override
+        public String get(int i) {
+            int length = ends[i] - starts[i];
+            if (length == 0)
+                return "";
+
+            if (bytes.length < length)
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+
+            view.position(starts[i]);
+            view.get(bytes, 0, length);
+
+            String v = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            return escaped[i] ? v.replace("\"\"", "\"") : v;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        //the bytes of the row are copied, its fields are decoded when they are read
+        @Override
+        public List<String> detach() {
+            int from = count == 0 ? 0 : starts[0];
+            int to = count == 0 ? 0 : ends[count - 1];
+
+            byte[] row = new byte[to - from];
+            view.position(from);
+            view.get(row);
+
+            int[] s = new int[count];
+            int[] e = new int[count];
+            for (int i = 0; i < count; i++) {
+                s[i] = starts[i] - from;
+                e[i] = ends[i] - from;
+            }
+
+            return new DetachedRow(row, s, e, Arrays.copyOf(escaped, count));
+        }
+    }
+
+    //a row copied out of the mapping by CsvRow.detach()
+    private static class DetachedRow extends AbstractList<String> {
+        private final byte[] row;
+        private final int[] starts;
+        private final int[] ends;
+        private final boolean[] escaped;
+
+        DetachedRow(byte[] row, int[] starts, int[] ends, boolean[] escaped) {
+            this.row = row;
+            this.starts = starts;
+            this.ends = ends;
+            this.escaped = escaped;
+        }
+
+        @Override
+        public String get(int i) {
+            String v = new String(row, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+            return escaped[i] ? v.replace("\"\"", "\"") : v;
+        }
+
+        @Override
+        public int size() {
+            return starts.length;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.waveconn;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.text.ParsePosition;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+
+/**
+ * Dates of one DATE column
+ *
+ * Text is parsed with the patterns of COL_X_FORMAT, several of them separated by |, and then as an ISO date
+ * with an optional time like 2015-06-26 or 2015-06-26 13:45:00. The formatters are built once for the column
+ * and resolved strictly, so 2015-02-30 is not a date. Numeric cells are Excel serial dates and are converted
+ * without going through their display format.
+ *
+ * Valid dates are kept in RowBatch as a long, the milliseconds of the local date and time since 1970-01-01
+ * as if it were UTC, so no time zone is applied between the cell and the DB.
+ *
+ */
+class DateParser {
+    //ISO date with an optional time after a space or T
+    static final DateTimeFormatter ISO = new DateTimeFormatterBuilder()
+            .append(DateTimeFormatter.ISO_LOCAL_DATE)
+            .optionalStart().appendLiteral(' ').optionalEnd()
+            .optionalStart().appendLiteral('T').optionalEnd()
+            .optionalStart().append(DateTimeFormatter.ISO_LOCAL_TIME).optionalEnd()
+            .toFormatter()
+            .withResolverStyle(ResolverStyle.STRICT);
+
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("uuuu-MM-dd");
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm:ss.SSS");
+
+    private static final LocalDateTime EXCEL_1900 = LocalDateTime.of(1899, 12, 30, 0, 0);
+    private static final LocalDateTime EXCEL_1904 = LocalDateTime.of(1904, 1, 1, 0, 0);
+
+    private final DateTimeFormatter[] formatters;
+
+    //patterns is the value of COL_X_FORMAT, null or empty for ISO dates only
+    DateParser(String patterns) {
+        String[] p = patterns == null || patterns.trim().isEmpty() ? new String[0] : patterns.split("\\|");
+
+        formatters = new DateTimeFormatter[p.length + 1];
+        for (int i = 0; i < p.length; i++)
+            formatters[i] = new DateTimeFormatterBuilder()
+                    .parseCaseInsensitive()
+                    .appendPattern(p[i].trim())
+                    //yyyy is the year of era, which the strict resolver takes only with an era
+                    .parseDefaulting(ChronoField.ERA, 1)
+                    .toFormatter()
+                    .withResolverStyle(ResolverStyle.STRICT);
+        formatters[p.length] = ISO;
+    }
+
+    //the date of v as a long, null if v is not a date in any of the patterns;
+    //a pattern is tried without resolving first, so text of another pattern costs no exception
+    Long parse(String v) {
+        v = v.trim();
+        for (DateTimeFormatter f : formatters) {
+            ParsePosition pos = new ParsePosition(0);
+            if (f.parseUnresolved(v, pos) == null || pos.getErrorIndex() >= 0 || pos.getIndex() != v.length())
+                continue;
+
+            TemporalAccessor t;
+            try {
+                t = f.parse(v);
+            } catch (DateTimeParseException e) {
+                //the text fits the pattern but is no date, like 2015-02-30
+                continue;
+            }
+
+            LocalDate date = t.query(TemporalQueries.localDate());
+            if (date == null)
+                continue;
+
+            LocalTime time = t.query(TemporalQueries.localTime());
+            return toLong(time == null ? date.atStartOfDay() : date.atTime(time));
+        }
+
+        return null;
+    }
+
+    //Excel serial date as a long, null if it is out of the Excel date range
+    static Long fromSerial(double serial, boolean date1904) {
+        if (!DateUtil.isValidExcelDate(serial))
+            return null;
+
+        long days = (long) Math.floor(serial);
+        long millis = Math.round((serial - days) * 86400000);
+
+        LocalDateTime base = date1904 ? EXCEL_1904 : EXCEL_1900;
+        //1900 has no February 29th but Excel counts one
+        if (!date1904 && days < 61)
+            base = base.plusDays(1);
+
+        return toLong(base.plusDays(days)) + millis;
+    }
+
+    //the workbook counts days from 1904-01-01 instead of 1900-01-01
+    static boolean isDate1904(Workbook workbook) {
+        if (workbook instanceof XSSFWorkbook)
+            return ((XSSFWorkbook) workbook).isDate1904();
+        if (workbook instanceof HSSFWorkbook)
+            return ((HSSFWorkbook) workbook).getInternalWorkbook().isUsing1904DateWindowing();
+
+        return false;
+    }
+
+    static long toLong(LocalDateTime t) {
+        return t.toEpochSecond(ZoneOffset.UTC) * 1000 + t.getNano() / 1000000;
+    }
+
+    static LocalDateTime toDateTime(long v) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(v, 1000), (int) Math.floorMod(v, 1000) * 1000000, ZoneOffset.UTC);
+    }
+
+    //a date without time of day
+    static boolean isDate(long v) {
+        return Math.floorMod(v, 86400000) == 0;
+    }
+
+    //as text for the error file and LOAD DATA, yyyy-MM-dd for a date without time of day
+    static String format(long v) {
+        return (isDate(v) ? DATE : DATE_TIME).format(toDateTime(v));
+    }
+}
@@ -0,0 +1,227 @@
+package com.waveconn;
+
+import java.sql.*;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fingerprints of the rows of the previous run, kept in DELTA_TABLE of the target DB
+ *
+ * Each valid row gets a 64-bit hash over all its mapped columns. A row whose fingerprint was saved by the
+ * previous run into the same DB table is unchanged and taken out of its batch before it is sent, so only
+ * new and changed rows are written. A changed row is a new row to the fingerprints; it replaces the old one
+ * in the DB only with WRITE_MODE=UPSERT.
+ *
+ * The fingerprints of new rows are added in the transaction of their batch, like checkpoints.
+ * At the end of the run the fingerprints of rows which were not seen again are deleted and reported as
+ * removed rows, so the table holds the rows of the last run. This is left out if not every row was read,
+ * because a file failed or rows were skipped by RESUME: their rows would count as removed.
+ *
+ * Two different rows have the same fingerprint with a chance of about 2^-64.
+ *
+ */
+class Delta implements AutoCloseable {
+    private final String table;
+    private final Connection con;
+
+    //fingerprints by DB table, loaded with the first batch of the table
+    private final Map<String, Fingerprints> tables = new HashMap();
+
+    //false once some rows were not read in this run
+    private boolean complete = true;
+
+    Delta(Excel2MySQL app) throws SQLException {
+        this.table = app.delta_table;
+
+        con = app.getConnection();
+
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + table + " ("
+                    + "db_table VARCHAR(255) NOT NULL, "
+                    + "fingerprint BIGINT NOT NULL, "
+                    + "PRIMARY KEY (db_table, fingerprint))");
+        }
+    }
+
+    //statement adding the fingerprint of a committed row, run by the writers in the batch transaction
+    String getInsertString() {
+        return "INSERT INTO " + table + " (db_table, fingerprint) VALUES (?, ?)";
+    }
+
+    //take the rows of a batch which are unchanged since the previous run out of it
+    void filter(RowBatch batch) {
+        Fingerprints f = get(batch.plan);
+
+        BitSet unchanged = new BitSet();
+        synchronized (f) {
+            for (int row = 0; row < batch.size(); row++) {
+                long fingerprint = batch.hash(row, f.cols);
+                //0 marks an empty slot
+                if (fingerprint == 0)
+                    fingerprint = 1;
+
+                int slot = f.previous.find(fingerprint);
+                if (slot >= 0) {
+                    f.seen.set(slot);
+                    unchanged.set(row);
+                } else if (f.added.add(fingerprint)) {
+                    batch.setFingerprint(row, fingerprint);
+                }
+                //else the same as a new row before it, sent again with its fingerprint saved once
+            }
+        }
+
+        int n = unchanged.cardinality();
+        if (n > 0) {
+            batch.removeRows(unchanged);
+            batch.sheet.rowsUnchanged(n);
+        }
+    }
+
+    private synchronized Fingerprints get(ImportPlan plan) {
+        Fingerprints f = tables.get(plan.getDb_table());
+        if (f == null) {
+            try {
+                f = load(plan);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                Excel2MySQL.exit(-10);
+            }
+
+            tables.put(plan.getDb_table(), f);
+        }
+
+        return f;
+    }
+
+    private Fingerprints load(ImportPlan plan) throws SQLException {
+        Fingerprints f = new Fingerprints(plan);
+
+        try (PreparedStatement ps = con.prepareStatement("SELECT fingerprint FROM " + table + " WHERE db_table = ?")) {
+            ps.setString(1, plan.getDb_table());
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next())
+                    f.previous.add(rs.getLong(1));
+            }
+        }
+
+        System.out.println(f.previous.size() + " row fingerprints of the previous run loaded for " + plan.getDb_table());
+
+        return f;
+    }
+
+    //some rows were not read, so rows not seen again are not known to be removed
+    synchronized void incomplete() {
+        complete = false;
+    }
+
+    //delete the fingerprints of the rows of the previous run which were not in this run
+    synchronized void removeUnseen() throws SQLException {
+        if (!complete) {
+            System.out.println("Not all rows were read, removed rows are not checked");
+            return;
+        }
+
+        for (Fingerprints f : tables.values()) {
+            int removed = 0;
+            try (PreparedStatement ps = con.prepareStatement(
+                    "DELETE FROM " + table + " WHERE db_table = ? AND fingerprint = ?")) {
+                long[] slots = f.previous.slots;
+                for (int slot = 0; slot < slots.length; slot++) {
+                    if (slots[slot] == 0 || f.seen.get(slot))
+                        continue;
+
+                    ps.setString(1, f.db_table);
+                    ps.setLong(2, slots[slot]);
+                    ps.addBatch();
+                    removed++;
+                }
+
+                if (removed > 0)
+                    ps.executeBatch();
+            }
+
+            System.out.println(f.db_table + ": " + removed + " rows of the previous run removed");
+        }
+    }
+
+    @Override
+    public synchronized void close() throws SQLException {
+        con.close();
+    }
+
+    //fingerprints of one DB table
+    private static class Fingerprints {
+        final String db_table;
+        //fingerprints are taken over all columns of the plan
+        final int[] cols;
+
+        final LongSet previous = new LongSet();
+        //slots of previous seen in this run
+        final BitSet seen = new BitSet();
+        //new in this run
+        final LongSet added = new LongSet();
+
+        Fingerprints(ImportPlan plan) {
+            this.db_table = plan.getDb_table();
+
+            cols = new int[plan.size()];
+            for (int c = 0; c < cols.length; c++)
+                cols[c] = c;
+        }
+    }
+
+    //open addressing set of non-zero longs
+    private static class LongSet {
+        long[] slots = new long[1024];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        //slot of v, -1 if not in the set
+        int find(long v) {
+            int mask = slots.length - 1;
+            for (int slot = (int) v & mask; slots[slot] != 0; slot = (slot + 1) & mask)
+                if (slots[slot] == v)
+                    return slot;
+
+            return -1;
+        }
+
+        //false if v is in the set already
+        boolean add(long v) {
+            if (size * 2 >= slots.length)
+                grow();
+
+            int mask = slots.length - 1;
+            int slot = (int) v & mask;
+            for (; slots[slot] != 0; slot = (slot + 1) & mask)
+                if (slots[slot] == v)
+                    return false;
+
+            slots[slot] = v;
+            size++;
+            return true;
+        }
+
+        private void grow() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+
+            int mask = slots.length - 1;
+            for (long v : old) {
+                if (v == 0)
+                    continue;
+
+                int slot = (int) v & mask;
+                while (slots[slot] != 0)
+                    slot = (slot + 1) & mask;
+                slots[slot] = v;
+            }
+        }
+    }
+}
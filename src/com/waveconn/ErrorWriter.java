@@ -0,0 +1,98 @@
+package com.waveconn;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Error file written while the import runs
+ *
+ * Invalid rows are written through SXSSF as soon as they are found. Only the last ROW_WINDOW rows of
+ * each sheet are kept in memory, older rows are flushed to temporary sheet files, so memory does not grow
+ * with the number of invalid rows. The .xlsx file is put together from them by close().
+ *
+ * Invalid rows of each source sheet go into a sheet of the same name. Every row starts with the source
+ * sheet, the 1-based Excel row, the failing column and the reason, followed by the cells of the row.
+ *
+ */
+class ErrorWriter {
+    //rows of each sheet kept in memory
+    static final int ROW_WINDOW = 100;
+    //cells of the source row start after the annotation columns
+    static final String[] HEADER = {"Sheet", "Row", "Column", "Reason"};
+
+    final String error_file;
+
+    private final SXSSFWorkbook wb = new SXSSFWorkbook(ROW_WINDOW);
+    private final Map<String, ErrorSheet> sheets = new HashMap();
+    private int rows = 0;
+
+    ErrorWriter(String error_file) {
+        this.error_file = error_file;
+    }
+
+    //write one invalid row, rowNum is its 0-based row in the source sheet
+    synchronized void write(String sheetName, int rowNum, String column, String reason, List<String> line) {
+        ErrorSheet sheet = sheets.computeIfAbsent(sheetName, this::createSheet);
+
+        Row row = sheet.sheet.createRow(sheet.nextRow++);
+        row.createCell(0).setCellValue(sheetName);
+        row.createCell(1).setCellValue(rowNum + 1);
+        row.createCell(2).setCellValue(column);
+        row.createCell(3).setCellValue(reason);
+
+        for (int j = 0; j < line.size(); j++) {
+            Cell cell = row.createCell(HEADER.length + j);
+            cell.setCellValue(line.get(j));
+        }
+
+        rows++;
+    }
+
+    private ErrorSheet createSheet(String sheetName) {
+        //sheet names are unique and at most 31 characters in Excel
+        String name = WorkbookUtil.createSafeSheetName(sheetName);
+        for (int i = 2; wb.getSheet(name) != null; i++)
+            name = WorkbookUtil.createSafeSheetName(i + " " + sheetName);
+
+        Sheet sheet = wb.createSheet(name);
+
+        Row header = sheet.createRow(0);
+        for (int j = 0; j < HEADER.length; j++)
+            header.createCell(j).setCellValue(HEADER[j]);
+
+        return new ErrorSheet(sheet);
+    }
+
+    synchronized int getRows() {
+        return rows;
+    }
+
+    //flushed rows can not be looked up, so the next row is counted here
+    private static class ErrorSheet {
+        final Sheet sheet;
+        int nextRow = 1;
+
+        ErrorSheet(Sheet sheet) {
+            this.sheet = sheet;
+        }
+    }
+
+    //write the error file and remove the temporary sheet files
+    synchronized void close() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(error_file)) {
+            wb.write(out);
+        } finally {
+            wb.dispose();
+            wb.close();
+        }
+    }
+}
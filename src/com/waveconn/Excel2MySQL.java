@@ -15,13 +15,18 @@
 
 package com.waveconn;
 
-import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
 
 import java.io.*;
-import java.sql.*;
+import java.nio.file.*;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Excel2MySQL validator
@@ -31,18 +36,91 @@ import java.util.*;
 
 1. column is named according excel convention, i.e., A_Z, AA_AZ, BA_BZ, ...
 
-2. for each column, there can be COL_A, COL_A_TYPE, COL_A_LEN
+2. for each column, there can be COL_A, COL_A_TYPE, COL_A_LEN, and COL_A_FORMAT for a DATE column
  if the column is missing, do not add it to db;
  if there is no value, do not add this column to db;
  if there is no type, default is string type;
  if there is no length; default is 256.
 
 3. we assume the table already exits in the db; the table schema must comply with those specified in the init file.
-  only insert not update.
+  only insert not update, unless WRITE_MODE=UPSERT.
 
 4. supported Type definition refer to Type ENUM file.
 
 5. if there is error, the error file is created each time with uniqe name based on that specified in the init file.
+ invalid rows are streamed into it while reading, each with its sheet, row, failing column and reason.
+
+6. READ_MODE=STREAM reads .xlsx files row by row with the XSSF event API instead of loading the whole workbook;
+ .xls files are always read into memory.
+
+7. PIPELINE=true inserts batches into DB while the Excel file is still being read;
+ at most QUEUE_SIZE batches of BULK_SIZE rows are waiting for the DB at any time.
+
+8. INSERT_THREADS writers insert batches in parallel, each on its own DB connection.
+
+9. LOAD_MODE=LOAD_DATA sends each batch with LOAD DATA LOCAL INFILE from memory instead of batched INSERT;
+ the server must allow local_infile. Rows it skips or loads with a warning go to the error file.
+
+10. ROWS_PER_INSERT rows are sent in each multi-row INSERT statement; 0 sizes it to max_allowed_packet.
+
+11. SHEET_THREADS sheets are read and validated in parallel, each with its own validation state.
+ SHEET.<sheet name>.DB_TABLE imports a sheet into its own table, other sheets go to DB_TABLE.
+ Invalid rows of each sheet are saved in a sheet of the same name in the error file.
+
+12. EXCEL_FILE_PATH can be a directory or a glob like D:/incoming/*.xlsx; all matching files are imported
+ in one run, FILE_THREADS at a time, sharing the DB connections of the insert stage.
+ Each file gets its own error file and a line in the summary printed at the end.
+
+13. CHECKPOINT_TABLE keeps the sheet rows of each committed batch by file content hash, in the batch transaction;
+ RESUME=true skips files, sheets and rows an earlier run has committed, so a failed import can be rerun
+ without duplicates. The table is created if it does not exist.
+
+14. FORMULA_MODE=CACHED reads the results stored with formula cells, EVALUATE (default) evaluates the formula
+ cells of each sheet before its rows are read, with an evaluator for each sheet, EVALUATE_ALL evaluates
+ all formulas up front. READ_MODE=STREAM always reads cached results.
+ The time spent on formulas is printed for each sheet.
+
+15. Time of each phase (open, parse, validate, bind, execute, commit, error write), rows/s, batch latency
+ and invalid rows by column and reason are shown over JMX as com.waveconn:type=Excel2MySQL,name="<file>",id=<n>
+ while the import runs, printed at the end and written as JSON to METRICS_FILE if it is set.
+
+16. WRITE_MODE=UPSERT updates the rows whose key is already in the table with INSERT ... ON DUPLICATE KEY UPDATE,
+ also with LOAD_MODE=LOAD_DATA, where REPLACE would delete and insert the rows again and reset their unmapped
+ columns. COL_X_KEY=true makes column X part of the key: its value
+ is not updated, and of the rows of a file with the same key only the last one is sent to DB.
+ The key must be a primary or unique key of the table; batches are held until the whole file is read.
+
+17. DELTA_TABLE keeps a 64-bit fingerprint of each row of the last run by DB table; rows unchanged since then
+ are not written again, only new and changed rows are. Rows of the last run which are gone are reported
+ and their fingerprints deleted. The table is created if it does not exist.
+
+18. COLUMN_TYPES=DB takes the type and length of each mapped column from the DB metadata of its table instead of
+ COL_X_TYPE and COL_X_LEN, so strings are truncated at the real column length. BOOL columns stay BOOL.
+ PLAN_CACHE keeps them in a file by a digest of the table's columns in information_schema, so a later run
+ checks the digest with one query and reads the metadata again only when a column has changed.
+
+19. EXCEL_FILE_PATH can also be a .csv file, or a tab separated .tsv, .tab or .txt file. It is read without POI
+ through a memory mapping as one sheet named after the file, and validated and inserted like a sheet.
+ Empty lines are skipped but counted in row numbers; IS_READ_FIRST_LINE=false skips the first line with text.
+ A directory imports its .csv and .tsv files along with the Excel files.
+
+20. DATE columns are validated and bound as DATE, or as DATETIME when the value has a time of day. Numeric cells
+ are taken as Excel serial dates; text is parsed with the DateTimeFormatter patterns of COL_X_FORMAT,
+ several separated by |, and then as an ISO date like 2015-06-26 or 2015-06-26 13:45:00. An empty cell is NULL.
+
+21. java Excel2MySQL -server <init_file> keeps running and imports files POSTed to http://localhost:SERVER_PORT/import,
+ SERVER_THREADS at a time, with the init file or another one next to it named by ?profile=.
+ DB connections are pooled, at most POOL_SIZE idle ones, and the plans of each profile are kept between imports.
+ The reply is a JSON summary; the error workbook of an import is at /errors/<job> for an hour.
+ See ImportServer.
+
+22. VALIDATE_THREADS validates the rows of each sheet read with READ_MODE=STREAM or from a CSV file in chunks
+ on a fork-join pool of that many threads. Chunks are taken back in sheet order, so batches, checkpoints
+ and the error file are the same as with one thread. Workbooks read into memory are validated on one thread.
+
+23. SHARED_STRINGS_CACHE above 0 keeps the shared strings of a file read with READ_MODE=STREAM in temp files
+ instead of memory, with that many of them cached. Only the strings of mapped columns are looked up while
+ reading, the others only for invalid rows. See SharedStringsFile.
  *
  * Created by Michael Z. on 2015/6/26.
  *
@@ -58,6 +136,27 @@ public class Excel2MySQL {
     public static final String EXCEL_ERROR_FILE_PATH = "EXCEL_ERROR_FILE_PATH";
     public static final String IS_READ_FIRST_LINE = "IS_READ_FIRST_LINE";
     public static final String BULK_SIZE = "BULK_SIZE";
+    public static final String READ_MODE = "READ_MODE";
+    public static final String PIPELINE = "PIPELINE";
+    public static final String QUEUE_SIZE = "QUEUE_SIZE";
+    public static final String INSERT_THREADS = "INSERT_THREADS";
+    public static final String LOAD_MODE = "LOAD_MODE";
+    public static final String ROWS_PER_INSERT = "ROWS_PER_INSERT";
+    public static final String SHEET_THREADS = "SHEET_THREADS";
+    public static final String FILE_THREADS = "FILE_THREADS";
+    public static final String CHECKPOINT_TABLE = "CHECKPOINT_TABLE";
+    public static final String RESUME = "RESUME";
+    public static final String FORMULA_MODE = "FORMULA_MODE";
+    public static final String METRICS_FILE = "METRICS_FILE";
+    public static final String WRITE_MODE = "WRITE_MODE";
+    public static final String DELTA_TABLE = "DELTA_TABLE";
+    public static final String COLUMN_TYPES = "COLUMN_TYPES";
+    public static final String PLAN_CACHE = "PLAN_CACHE";
+    public static final String SERVER_PORT = "SERVER_PORT";
+    public static final String SERVER_THREADS = "SERVER_THREADS";
+    public static final String POOL_SIZE = "POOL_SIZE";
+    public static final String VALIDATE_THREADS = "VALIDATE_THREADS";
+    public static final String SHARED_STRINGS_CACHE = "SHARED_STRINGS_CACHE";
 
     public static final int DB_STRING_LEN_DEFAULT = 256;
     public static final int DB_DATE_LEN = 64;
@@ -74,20 +173,61 @@ public class Excel2MySQL {
     String excel_error_file_path = null;
     boolean is_read_first_line;
     int bulk_size;
+    String read_mode = "DOM";
+    boolean pipeline;
+    int queue_size = 4;
+    int insert_threads = 1;
+    String load_mode = "INSERT";
+    int rows_per_insert = 0;
+    int sheet_threads = 1;
+    //sheet name to DB table
+    Map<String, String> sheet_tables = new HashMap();
+    int file_threads = 1;
+    String checkpoint_table = "";
+    boolean resume;
+    String formula_mode = "EVALUATE";
+    String metrics_file = "";
+    String write_mode = "INSERT";
+    String delta_table = "";
+    String column_types = "INIT";
+    String plan_cache = "";
+    int server_port = 8080;
+    int server_threads = 4;
+    int pool_size = 8;
+    int validate_threads = 1;
+    int shared_strings_cache = 0;
 
     ArrayList<Mapping> dbMap;
-
-    Workbook workbook = null;
-    FormulaEvaluator evaluator = null;
-    DataFormatter formatter = null;
-
-    ArrayList<ArrayList<String>> correctRows = new ArrayList();
-    ArrayList<ArrayList<String>> errorRows = new ArrayList();
+    ImportPlan plan;
+    //plans by DB table, shared by all files
+    Map<String, ImportPlan> plans = new ConcurrentHashMap();
+    //null if column types come from the init file
+    ColumnMetadata columnMetadata = null;
+
+    //null if no checkpoints are kept
+    Checkpoint checkpoint = null;
+    //null if no fingerprints are kept
+    Delta delta = null;
+
+    ImportMetrics metrics = new ImportMetrics();
+
+    //set when running as a server, see exit()
+    static volatile boolean server = false;
+    //connections of the server, null to open them for this import only
+    ConnectionPool pool = null;
+    //validates chunks of lines while the import runs, null with VALIDATE_THREADS=1
+    ForkJoinPool validators = null;
 
     public static void main(String[] args) {
 
+        if (args.length == 2 && "-server".equals(args[0])) {
+            ImportServer.serve(args[1]);
+            return;
+        }
+
         if (args.length != 1) {
             System.out.println("Usage: java Excel2MySQL <init_file>");
+            System.out.println("       java Excel2MySQL -server <init_file>");
             System.exit(-1);
         }
 
@@ -116,7 +256,7 @@ public class Excel2MySQL {
             properties.load(new FileInputStream(initFile));
         } catch (IOException e) {
             System.err.println("Something wrong with .init file");
-            System.exit(-2);
+            exit(-2);
         }
 
         //Mapping for columns
@@ -153,7 +293,76 @@ public class Excel2MySQL {
                 case BULK_SIZE:
                     bulk_size = Integer.parseInt(value);
                     break;
+                case READ_MODE:
+                    read_mode = value.trim().toUpperCase();
+                    break;
+                case PIPELINE:
+                    pipeline = Boolean.parseBoolean(value);
+                    break;
+                case QUEUE_SIZE:
+                    queue_size = Integer.parseInt(value);
+                    break;
+                case INSERT_THREADS:
+                    insert_threads = Integer.parseInt(value);
+                    break;
+                case LOAD_MODE:
+                    load_mode = value.trim().toUpperCase();
+                    break;
+                case ROWS_PER_INSERT:
+                    rows_per_insert = Integer.parseInt(value);
+                    break;
+                case SHEET_THREADS:
+                    sheet_threads = Integer.parseInt(value);
+                    break;
+                case FILE_THREADS:
+                    file_threads = Integer.parseInt(value);
+                    break;
+                case CHECKPOINT_TABLE:
+                    checkpoint_table = value.trim();
+                    break;
+                case RESUME:
+                    resume = Boolean.parseBoolean(value);
+                    break;
+                case FORMULA_MODE:
+                    formula_mode = value.trim().toUpperCase();
+                    break;
+                case METRICS_FILE:
+                    metrics_file = value.trim();
+                    break;
+                case WRITE_MODE:
+                    write_mode = value.trim().toUpperCase();
+                    break;
+                case DELTA_TABLE:
+                    delta_table = value.trim();
+                    break;
+                case COLUMN_TYPES:
+                    column_types = value.trim().toUpperCase();
+                    break;
+                case PLAN_CACHE:
+                    plan_cache = value.trim();
+                    break;
+                case SERVER_PORT:
+                    server_port = Integer.parseInt(value.trim());
+                    break;
+                case SERVER_THREADS:
+                    server_threads = Integer.parseInt(value.trim());
+                    break;
+                case POOL_SIZE:
+                    pool_size = Integer.parseInt(value.trim());
+                    break;
+                case VALIDATE_THREADS:
+                    validate_threads = Integer.parseInt(value.trim());
+                    break;
+                case SHARED_STRINGS_CACHE:
+                    shared_strings_cache = Integer.parseInt(value.trim());
+                    break;
                 default:
+                    //SHEET.<sheet name>.DB_TABLE, the sheet name may contain separators
+                    if (key.matches("(?i)SHEET[_.].+[_.]DB_TABLE") && !value.trim().isEmpty()) {
+                        sheet_tables.put(key.substring(6, key.length() - 9), value.trim());
+                        break;
+                    }
+
                     String[] tokens = key.split("[_.]");
                     if (tokens.length > 1 && tokens[0].equalsIgnoreCase("COL"))
                         colMap.put(key, value);
@@ -203,11 +412,31 @@ public class Excel2MySQL {
 
                             m.setLen(len);
 
+                            break;
+                        case "key":
+                            m.setKey(Boolean.parseBoolean(e.getValue().trim()));
+
+                            break;
+                        case "format":
+                            m.setFormat(e.getValue().trim());
+
                             break;
                     }
                 });
 
+        //LOAD DATA ... REPLACE deletes and inserts the row again: unmapped columns go back to their defaults,
+        //AUTO_INCREMENT ids change and ON DELETE CASCADE fires, where ON DUPLICATE KEY UPDATE updates the row
+        if (isUpsert() && "LOAD_DATA".equals(load_mode)) {
+            System.out.println("LOAD_MODE=LOAD_DATA does not update rows, INSERT is used with WRITE_MODE=UPSERT");
+            load_mode = "INSERT";
+        }
+
         showinfo();
+
+        if ("DB".equals(column_types))
+            columnMetadata = new ColumnMetadata(this);
+
+        plan = getTablePlan(db_table);
     }
 
     private void showinfo() {
@@ -220,328 +449,336 @@ public class Excel2MySQL {
         System.out.println("EXCEL_ERROR_FILE_PATH=" + excel_error_file_path);
         System.out.println("IS_READ_FIRST_LINE=" + is_read_first_line);
         System.out.println("BULK_SIZE=" + bulk_size);
+        System.out.println("READ_MODE=" + read_mode);
+        System.out.println("PIPELINE=" + pipeline);
+        System.out.println("QUEUE_SIZE=" + queue_size);
+        System.out.println("INSERT_THREADS=" + insert_threads);
+        System.out.println("LOAD_MODE=" + load_mode);
+        System.out.println("ROWS_PER_INSERT=" + rows_per_insert);
+        System.out.println("SHEET_THREADS=" + sheet_threads);
+        for (Map.Entry<String, String> e : sheet_tables.entrySet())
+            System.out.println("SHEET." + e.getKey() + ".DB_TABLE=" + e.getValue());
+        System.out.println("FILE_THREADS=" + file_threads);
+        System.out.println("CHECKPOINT_TABLE=" + checkpoint_table);
+        System.out.println("RESUME=" + resume);
+        System.out.println("FORMULA_MODE=" + formula_mode);
+        System.out.println("METRICS_FILE=" + metrics_file);
+        System.out.println("WRITE_MODE=" + write_mode);
+        System.out.println("DELTA_TABLE=" + delta_table);
+        System.out.println("COLUMN_TYPES=" + column_types);
+        System.out.println("PLAN_CACHE=" + plan_cache);
+        System.out.println("VALIDATE_THREADS=" + validate_threads);
+        System.out.println("SHARED_STRINGS_CACHE=" + shared_strings_cache);
+        if (server) {
+            System.out.println("SERVER_PORT=" + server_port);
+            System.out.println("SERVER_THREADS=" + server_threads);
+            System.out.println("POOL_SIZE=" + pool_size);
+        }
 
-        System.out.println("Excel   " + "DB   " + "Type   " + "Length");
+        System.out.println("Excel   " + "DB   " + "Type   " + "Length   " + "Key   " + "Format");
         for (Mapping m : dbMap) {
             System.out.print("COL_" + m.getExcel_sym() + "   ");
             System.out.print(m.getDb_col() + "   ");
             System.out.print(m.getType() + "   ");
             System.out.print(m.getLen() + "   ");
+            System.out.print(m.isKey() ? "KEY   " : "");
+            System.out.print(m.getFormat() != null ? m.getFormat() : "");
             System.out.println();
         }
 
         System.out.println();
     }
 
+    //the plan of the table a sheet is imported into
+    ImportPlan getPlan(String sheetName) {
+        return getTablePlan(sheet_tables.getOrDefault(sheetName, db_table));
+    }
+
+    private ImportPlan getTablePlan(String table) {
+        return plans.computeIfAbsent(table, t -> new ImportPlan(t,
+                columnMetadata == null ? dbMap : columnMetadata.resolve(t, dbMap), isUpsert()));
+    }
+
+    boolean isUpsert() {
+        return "UPSERT".equals(write_mode);
+    }
+
+    //end the run with status; in server mode only the import fails, the server goes on
+    static void exit(int status) {
+        if (server)
+            throw new ImportServer.ImportFailed(status);
+
+        System.exit(status);
+    }
+
+    //a connection to the DB of the init file, from the pool of the server if there is one
+    Connection getConnection() throws SQLException {
+        if (pool != null)
+            return pool.getConnection(db_url, db_user_name, db_password);
+
+        return DriverManager.getConnection(db_url, db_user_name, db_password);
+    }
+
     //read and validate Excel, and import into DB
     void dbImport() {
-        FileInputStream excel_file = null;
-        try {
-            excel_file = new FileInputStream(new File(excel_file_path));
-        } catch (FileNotFoundException e) {
-            System.out.println("File not found: " + excel_file_path);
-            System.exit(-3);
-        }
+        metrics.register(excel_file_path);
+
+        startValidators();
+        openTables();
+
+        if (isBatch(excel_file_path))
+            importFiles();
+        else
+            importFile();
+
+        closeTables();
+        stopValidators();
 
+        metrics.finish();
+        System.out.println();
+        metrics.print();
+        if (!metrics_file.isEmpty())
+            metrics.save(metrics_file);
+    }
+
+    //import one file uploaded to the server with its own insert stage, returns its summary line
+    String importUpload(FileImport file) {
+        metrics.register(file.excel_file_path);
         try {
-            workbook = WorkbookFactory.create(excel_file);
-            evaluator = workbook.getCreationHelper().createFormulaEvaluator();
-            formatter = new DataFormatter(true);
+            startValidators();
+            openTables();
+
+            BatchInserter inserter = new BatchInserter(this);
+            inserter.start();
+            file.inserter = inserter;
+            String line;
+            try {
+                line = importFile(file);
+            } finally {
+                inserter.finish();
+            }
 
-            Sheet sheet = null;
-            Row row = null;
-            int lastRowNum = 0;
+            if (inserter.isStopped())
+                file.status = "FAILED insert stopped on a DB error";
 
-            System.out.println("Reading excel file content from " + excel_file_path);
+            return line;
+        } finally {
+            closeTables();
+            stopValidators();
+            metrics.finish();
+        }
+    }
 
-            // Discover how many sheets there are in the workbook....
-            int numSheets = workbook.getNumberOfSheets();
+    private void startValidators() {
+        if (validate_threads > 1)
+            validators = new ForkJoinPool(validate_threads);
+    }
 
-            // and then iterate through them.
-            for (int i = 0; i < numSheets; i++) {
+    private void stopValidators() {
+        if (validators != null) {
+            validators.shutdown();
+            validators = null;
+        }
+    }
 
-                // Get a reference to a sheet and check to see if it contains any rows.
-                sheet = workbook.getSheetAt(i);
-                if (sheet.getPhysicalNumberOfRows() > 0) {
+    //open the checkpoint and delta tables of the init file
+    private void openTables() {
+        if (!checkpoint_table.isEmpty()) {
+            try {
+                checkpoint = new Checkpoint(this);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                exit(-10);
+            }
+        }
 
-                    // Note down the index number of the bottom-most row and
-                    // then iterate through all of the rows on the sheet starting
-                    // from the very first row - number 1 - even if it is missing.
-                    // Recover a reference to the row and then call another method
-                    // which will strip the data from the cells and build lines
-                    lastRowNum = sheet.getLastRowNum();
+        if (!delta_table.isEmpty()) {
+            try {
+                delta = new Delta(this);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                exit(-10);
+            }
+        }
 
-                    int start = 0;
-                    if (!is_read_first_line)
-                        start = 1;
+    }
 
-                    for (int j = start; j <= lastRowNum; j++) {
-                        row = sheet.getRow(j);
-                        this.rowToData(row);
-                    }
-                }
+    private void closeTables() {
+        if (delta != null) {
+            try {
+                delta.removeUnseen();
+                delta.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                exit(-10);
+            }
+        }
+
+        if (checkpoint != null) {
+            try {
+                checkpoint.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
+        }
+    }
+
+    private void importFile() {
+        FileImport file = new FileImport(this, excel_file_path);
+
+        BatchInserter inserter = null;
+        if (pipeline) {
+            //valid rows go into DB while reading
+            System.out.println("Inserting valid rows into DB table " + db_url + "/" + db_table + " while reading");
+            inserter = new BatchInserter(this);
+            inserter.start();
+            file.inserter = inserter;
+        }
 
+        try {
+            file.read();
+        } catch (FileNotFoundException e) {
+            System.out.println("File not found: " + excel_file_path);
+            exit(-3);
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("IOException: " + excel_file_path);
-            System.exit(-4);
-        } catch (InvalidFormatException e) {
+            exit(-4);
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
             e.printStackTrace();
             System.out.println("Invalid Format: " + excel_file_path);
-            System.exit(-5);
-        } finally {
-            if (excel_file != null) {
-                try {
-                    excel_file.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.out.println("IOException: " + excel_file_path);
-                    System.exit(-6);
-                }
-            }
+            exit(-5);
         }
 
-        //put valid rows into DB
-        System.out.println("Inserting valid rows into DB table " + db_url + "/" + db_table);
-        insertDB();
+        if (pipeline) {
+            inserter.finish();
+        } else {
+            //put valid rows into DB
+            System.out.println("Inserting valid rows into DB table " + db_url + "/" + db_table);
+            insertDB(file);
+        }
+
+        file.markDone();
 
         System.out.println();
+        file.printSummary();
 
-        //save invalid rows if any
-        int errs = errorRows.size();
-        if (errs > 0) {
-            saveError();
+        //save invalid and rejected rows if any
+        if (file.getInvalidRows() + file.getRejectedRows() > 0) {
+            file.saveError();
         } else {
             System.out.println("There is no invalid row");
         }
     }
 
-    private void insertDB() {
-        try (
-                Connection con = DriverManager.getConnection(
-                        db_url,
-                        db_user_name,
-                        db_password)) {
-
-            String insertString = Mapping.getInsertString(dbMap, db_table);
-
-            con.setAutoCommit(false);
-
-            try (PreparedStatement insertRows = con.prepareStatement(insertString);) {
-                int j = 0;
-                while (j < correctRows.size()) {
-                    int batch_index = 0;
-                    while (batch_index < bulk_size && j < correctRows.size()) {
-                        int param_index = 0;
-                        for (Mapping m : dbMap) {
-                            param_index++;
-                            switch (m.getType()) {
-                                case INTEGER:
-                                    insertRows.setLong(param_index, Long.parseLong(correctRows.get(j).get(m.getExcel_col())));
-                                    break;
-                                case NUMBER:
-                                    insertRows.setDouble(param_index, Double.parseDouble(correctRows.get(j).get(m.getExcel_col())));
-                                    break;
-                                case STRING:
-                                case DATE:
-                                case BOOLEAN:
-                                    insertRows.setString(param_index, correctRows.get(j).get(m.getExcel_col()));
-                                    break;
-                            }
-                        }
+    private void insertDB(FileImport file) {
+        BatchInserter inserter = new BatchInserter(this);
+        inserter.start();
 
-                        insertRows.addBatch();
-                        batch_index++;
-                        j++;
-                    }
+        for (RowBatch batch : file.correctRows)
+            inserter.submit(batch);
 
-                    System.out.println("batch insert.");
-
-                    int[] numUpdates = insertRows.executeBatch();
-
-                    int total = 0;
-                    for (int n : numUpdates)
-                        if (n > 0) total += n;
+        inserter.finish();
+    }
 
-                    System.out.println("batch insert " + total + " rows");
+    //a directory or a glob of Excel files
+    private static boolean isBatch(String path) {
+        return new File(path).isDirectory() || path.contains("*") || path.contains("?");
+    }
 
-                    con.commit();
-                }
+    //Excel files of a directory, or the files matching a glob in its parent directory, sorted by name
+    private static List<File> listFiles(String path) {
+        File dir;
+        PathMatcher matcher;
+        if (new File(path).isDirectory()) {
+            dir = new File(path);
+            matcher = FileSystems.getDefault().getPathMatcher("glob:*.{xlsx,xls,csv,tsv,XLSX,XLS,CSV,TSV}");
+        } else {
+            File glob = new File(path);
+            dir = glob.getParentFile() == null ? new File(".") : glob.getParentFile();
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob.getName());
+        }
 
-                System.out.println("total insert " + j + " rows");
-            } catch (BatchUpdateException b) {
-                System.out.println("BatchUpdateException");
-            } catch (SQLException b) {
-                System.out.println("SQLException");
-            }
+        File[] files = dir.listFiles(f -> f.isFile() && matcher.matches(Paths.get(f.getName())));
+        if (files == null)
+            return new ArrayList();
 
-            con.setAutoCommit(true);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            System.exit(-10);
-        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
     }
 
-    //save error into error file which is unique by TIMESTAMP
-    private void saveError() {
-        String error_file;
-        long now = System.currentTimeMillis();
-        if (excel_error_file_path.endsWith(".xlsx"))
-            error_file = excel_error_file_path.split("[.]")[0] + "_" + now + ".xlsx";
-        else
-            error_file = excel_error_file_path + "_" + now + ".xlsx";
+    //import all files of a directory or glob, FILE_THREADS at a time into one shared insert stage
+    private void importFiles() {
+        List<File> files = listFiles(excel_file_path);
+        if (files.isEmpty()) {
+            System.out.println("File not found: " + excel_file_path);
+            exit(-3);
+        }
 
-        try (Workbook wb = new XSSFWorkbook();
-             FileOutputStream out = new FileOutputStream(error_file)) {
+        System.out.println("Importing " + files.size() + " files from " + excel_file_path
+                + " into DB table " + db_url + "/" + db_table);
 
-            Sheet sheet = wb.createSheet("Errors");
+        BatchInserter inserter = new BatchInserter(this);
+        inserter.start();
 
-            for (int i = 0; i < errorRows.size(); i++) {
-                Row row = sheet.createRow(i);
-                ArrayList<String> rowData = errorRows.get(i);
-                for (int j = 0; j < rowData.size(); j++) {
-                    Cell cell = row.createCell(j);
-                    cell.setCellValue(rowData.get(j));
-                }
-            }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(Math.min(file_threads, files.size()), 1));
+        List<Future<String>> results = new ArrayList();
+        for (File f : files) {
+            FileImport file = new FileImport(this, f.getPath());
+            file.inserter = inserter;
+            file.error_suffix = "_" + getBaseName(f.getName());
+            results.add(pool.submit(() -> importFile(file)));
+        }
 
-            // Write the output to a file
-            wb.write(out);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
+        //one summary line for each file
+        List<String> summary = new ArrayList();
+        try {
+            for (Future<String> r : results)
+                summary.add(r.get());
+        } catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
+            exit(-11);
+        } finally {
+            pool.shutdown();
         }
 
-        System.out.println(errorRows.size() + " invalid rows found. Saved to " + error_file);
+        inserter.finish();
+
+        System.out.println();
+        System.out.println("Summary of " + files.size() + " files:");
+        for (String line : summary)
+            System.out.println(line);
     }
 
-    //validate Excel data based on data type Mapping from the init file
-    private void rowToData(Row row) {
-        Cell cell = null;
-        int lastCellNum = 0;
-        ArrayList<String> line = new ArrayList();
-        ArrayList<Object> correctLine = new ArrayList();
-
-        boolean error = false;
-
-        // Check to ensure that a row was recovered from the sheet as it is
-        // possible that one or more rows between other populated rows could be
-        // missing - blank. If the row does contain cells then...
-        if (row != null) {
-
-            // Get the index for the right most cell on the row and then
-            // step along the row from left to right recovering the contents
-            // of each cell, converting that into a formatted String and
-            // then storing the String into the line ArrayList.
-            lastCellNum = row.getLastCellNum();
-            for (int i = 0; i < lastCellNum; i++) {
-                cell = row.getCell(i);
-                if (cell == null) {
-                    line.add("");
-                } else {
-                    if (cell.getCellType() != Cell.CELL_TYPE_FORMULA) {
-                        line.add(this.formatter.formatCellValue(cell));
-                    } else {
-                        line.add(this.formatter.formatCellValue(cell, this.evaluator));
-                    }
-                }
-            }
+    private static String getBaseName(String name) {
+        return name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+    }
 
-            //check if there is an error cell in this line and set a flag.
-            error = false;
-            for (int i = 0; i <= lastCellNum; i++) {
-                //ignore the column if it is not in db table
-                if (!Mapping.isDb_Col(dbMap, i))
-                    continue;
-
-                Mapping m = Mapping.getMapping(dbMap, i);
-
-                switch (m.getType()) {
-                    case INTEGER: //INT (int or long)
-                        try {
-                            int tmp = Integer.parseInt(line.get(i));
-                            correctLine.add(tmp);
-                        } catch (NumberFormatException e) {
-                            try {
-                                long tmp = Long.parseLong(line.get(i));
-                                correctLine.add(tmp);
-                                break;
-                            } catch (NumberFormatException e1) {
-                                error = true;
-                                break;
-                            }
-                        }
-                        break;
-                    case NUMBER: //NUM (int or long or float or double)
-                        try {
-                            int tmp = Integer.parseInt(line.get(i));
-                            correctLine.add(tmp);
-                        } catch (NumberFormatException e) {
-                            try {
-                                long tmp = Long.parseLong(line.get(i));
-                                correctLine.add(tmp);
-                                break;
-                            } catch (NumberFormatException e1) {
-                                try {
-                                    Float tmp = Float.parseFloat(line.get(i));
-                                    correctLine.add(tmp);
-                                    break;
-                                } catch (NumberFormatException e2) {
-                                    try {
-                                        Double tmp = Double.parseDouble(line.get(i));
-                                        correctLine.add(tmp);
-                                        break;
-                                    } catch (NumberFormatException e3) {
-                                        error = true;
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                        break;
-                    case STRING: //STR
-                        int len = m.getLen();
-                        if (len == -1) len = DB_STRING_LEN_DEFAULT;
-
-                        String v = line.get(i);
-                        if (v.length() > len)
-                            v = v.substring(0, len);
-                        correctLine.add(v);
-                        break;
-                    case DATE: //DATE not validated currently
-                        v = line.get(i);
-                        if (v.length() > DB_DATE_LEN)
-                            v = v.substring(0, DB_DATE_LEN);
-                        correctLine.add(v);
-                        break;
-                    case BOOLEAN: //BOOL
-                        v = line.get(i);
-                        if (v.length() > DB_BOOL_LEN)
-                            v = v.substring(0, DB_BOOL_LEN);
-                        if ("true".equalsIgnoreCase(v)
-                                || "false".equalsIgnoreCase(v)
-                                || "t".equalsIgnoreCase(v)
-                                || "f".equalsIgnoreCase(v)
-                                || "yes".equalsIgnoreCase(v)
-                                || "no".equalsIgnoreCase(v)
-                                || "y".equalsIgnoreCase(v)
-                                || "n".equalsIgnoreCase(v)
-                                ) {
-                            correctLine.add(v);
-                            break;
-                        } else {
-                            error = true;
-                            break;
-                        }
-                }
-            }
+    //import one file of a batch, a failed file does not stop the others
+    private String importFile(FileImport file) {
+        try {
+            file.read();
+        } catch (IOException | OpenXML4JException | SAXException | ParserConfigurationException | RuntimeException e) {
+            e.printStackTrace();
+            file.status = "FAILED " + e;
         }
 
-        if (error)
-            this.errorRows.add(line);
-        else
-            this.correctRows.add(line);
+        file.awaitInserted();
+        file.markDone();
+        if (file.skipped)
+            file.status = "SKIPPED";
+
+        file.printSummary();
+
+        String line = file.excel_file_path + ": " + file.status + ", "
+                + file.getValidRows() + " valid rows, "
+                + file.getCommittedRows() + " inserted rows, "
+                + file.getInvalidRows() + " invalid rows, "
+                + file.getRejectedRows() + " rows rejected by DB";
+
+        if (file.getInvalidRows() + file.getRejectedRows() > 0)
+            line += ", saved to " + file.saveError();
+
+        return line;
     }
 }
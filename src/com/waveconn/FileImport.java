@@ -0,0 +1,404 @@
+package com.waveconn;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.*;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Import of one Excel file
+ *
+ * Reads and validates the sheets of the file with the settings of the init file, from the RowSource
+ * that fits the file type.
+ * Full batches of valid rows go to the insert stage if there is one, otherwise they are
+ * kept in correctRows until reading is finished. Invalid rows are streamed into the error file
+ * while the file is read, see ErrorWriter. The batches still waiting for the DB
+ * are counted, so the file is known to be done even when the insert stage is shared
+ * with other files.
+ *
+ * With CHECKPOINT_TABLE set the file is hashed before reading, and what an earlier run has
+ * committed is skipped if RESUME is on, see Checkpoint.
+ *
+ * With WRITE_MODE=UPSERT all batches are held until the file is read, so the rows of a key can be
+ * deduplicated over the whole file in workbook order before any of them is sent, see KeySet.
+ * The batches of a file that fails to read are discarded.
+ *
+ * With DELTA_TABLE set the rows unchanged since the previous run are taken out of each batch before
+ * it is sent, after deduplication with UPSERT, see Delta.
+ *
+ */
+class FileImport {
+    final Excel2MySQL app;
+    final String excel_file_path;
+
+    ArrayList<RowBatch> correctRows = new ArrayList();
+    //validation state of each sheet, in workbook order
+    ArrayList<SheetImporter> sheets = new ArrayList();
+
+    //insert stage when PIPELINE is on or files share one
+    BatchInserter inserter = null;
+
+    //put into the error file name, files of a batch are told apart by it
+    String error_suffix = "";
+    //created with the first invalid row
+    private ErrorWriter errors = null;
+
+    //batches handed on but not yet inserted or discarded
+    private int pendingBatches = 0;
+
+    //content hash and earlier progress when checkpoints are kept
+    String file_hash = null;
+    private Checkpoint.Progress progress = null;
+    //all sheets were read without error
+    private boolean readAll = false;
+    //the whole file was imported by an earlier run
+    boolean skipped = false;
+    //OK, SKIPPED or FAILED with the error, set once the file is imported
+    String status = "OK";
+
+    FileImport(Excel2MySQL app, String excel_file_path) {
+        this.app = app;
+        this.excel_file_path = excel_file_path;
+    }
+
+    //read and validate all sheets
+    void read() throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+        if (app.checkpoint != null) {
+            file_hash = Checkpoint.hash(excel_file_path);
+            if (!app.checkpoint.claim(file_hash)) {
+                System.out.println(excel_file_path + " has the same content as another file of this run, skipped");
+                skipped = true;
+                return;
+            }
+
+            loadProgress();
+
+            //rows skipped by RESUME are not seen by the delta, see Delta
+            if (app.delta != null && !progress.isEmpty())
+                app.delta.incomplete();
+
+            if (progress.isFileDone()) {
+                System.out.println(excel_file_path + " already imported, skipped");
+                skipped = true;
+                return;
+            }
+        }
+
+        try {
+            readSource();
+
+            readAll = true;
+
+            if (app.isUpsert())
+                dropDuplicates();
+
+            if (app.isUpsert() && app.delta != null) {
+                for (RowBatch batch : correctRows)
+                    app.delta.filter(batch);
+            }
+
+            if (app.delta != null)
+                System.out.println(excel_file_path + ": " + getUnchangedRows() + " rows unchanged since the previous run");
+        } finally {
+            if (!readAll && app.delta != null)
+                app.delta.incomplete();
+
+            if (app.isUpsert() && inserter != null)
+                submitHeld();
+        }
+    }
+
+    //keep only the last row of each key of each table, in workbook order
+    private void dropDuplicates() {
+        //batches of a sheet are in sheet order already, parallel sheets are interleaved
+        correctRows.sort(Comparator.comparingInt(batch -> sheets.indexOf(batch.sheet)));
+
+        Map<ImportPlan, KeySet> keys = new HashMap();
+        for (RowBatch batch : correctRows) {
+            if (batch.plan.getKeyCols().length > 0)
+                keys.computeIfAbsent(batch.plan, KeySet::new).add(batch);
+        }
+
+        int dropped = 0;
+        for (KeySet k : keys.values())
+            dropped += k.dropDuplicates();
+
+        if (dropped > 0)
+            System.out.println(excel_file_path + ": " + dropped + " rows dropped for a later row of the same key");
+    }
+
+    //hand the held batches to the insert stage, or discard them if the file was not read completely;
+    //batches left empty by deduplication still go, they record their rows in the checkpoints
+    private void submitHeld() {
+        for (RowBatch batch : correctRows) {
+            if (readAll)
+                inserter.submit(batch);
+            else
+                batch.sheet.batchInserted(batch, 0);
+        }
+
+        correctRows.clear();
+    }
+
+    private void loadProgress() {
+        try {
+            progress = app.checkpoint.load(file_hash);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Excel2MySQL.exit(-10);
+        }
+    }
+
+    //sheet marked done by an earlier run
+    private boolean isSheetDone(String sheetName) {
+        if (progress == null || !progress.isSheetDone(sheetName))
+            return false;
+
+        System.out.println("Sheet " + sheetName + " already imported, skipped");
+        return true;
+    }
+
+    //mark the sheets whose valid rows are all committed, and the file once all of them are;
+    //nothing is marked if reading failed, the sheet being read may not be complete
+    void markDone() {
+        if (file_hash == null || skipped || !readAll)
+            return;
+
+        try {
+            boolean allDone = true;
+            for (SheetImporter sheet : sheets) {
+                if (sheet.getCommittedRows() + sheet.getRejectedRows() + sheet.getDroppedRows()
+                        + sheet.getUnchangedRows() == sheet.getValidRows())
+                    app.checkpoint.markDone(file_hash, sheet.sheetName);
+                else
+                    allDone = false;
+            }
+
+            if (allDone)
+                app.checkpoint.markDone(file_hash, Checkpoint.FILE_DONE);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Excel2MySQL.exit(-10);
+        }
+    }
+
+    //read and validate the sheets of the file, SHEET_THREADS at a time
+    private void readSource() throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+        long start = System.nanoTime();
+        try (RowSource source = openSource()) {
+            app.metrics.add(ImportMetrics.Phase.OPEN, System.nanoTime() - start);
+
+            List<Callable<Void>> tasks = new ArrayList();
+            for (String sheetName : source.getSheetNames()) {
+                if (isSheetDone(sheetName))
+                    continue;
+
+                SheetImporter importer = newSheetImporter(sheetName);
+                tasks.add(() -> {
+                    long sheetStart = System.nanoTime();
+                    source.readSheet(sheetName, importer);
+                    importer.finish();
+                    app.metrics.sheetDone(excel_file_path, importer, System.nanoTime() - sheetStart);
+                    return null;
+                });
+            }
+
+            runSheets(tasks);
+        }
+    }
+
+    //CSV and TSV files are read as text, .xlsx files row by row with READ_MODE=STREAM,
+    //other files are read into memory
+    private RowSource openSource() throws IOException, OpenXML4JException, SAXException {
+        if (CsvReader.isText(excel_file_path)) {
+            System.out.println("Reading text file content from " + excel_file_path);
+            return new CsvReader(excel_file_path, app.is_read_first_line);
+        }
+
+        if ("STREAM".equals(app.read_mode) && excel_file_path.toLowerCase().endsWith(".xlsx")) {
+            if (!new File(excel_file_path).isFile())
+                throw new FileNotFoundException(excel_file_path);
+
+            System.out.println("Streaming excel file content from " + excel_file_path);
+            return new XlsxStreamReader(excel_file_path, app.is_read_first_line, app.shared_strings_cache);
+        }
+
+        System.out.println("Reading excel file content from " + excel_file_path);
+        return new WorkbookSource(app, excel_file_path);
+    }
+
+    //validation state for a sheet, importing into its own table if one is set in the init file
+    private SheetImporter newSheetImporter(String sheetName) {
+        SheetImporter importer = new SheetImporter(this, sheetName, app.getPlan(sheetName), app.bulk_size,
+                progress == null ? null : progress.getCommitted(sheetName));
+        sheets.add(importer);
+
+        return importer;
+    }
+
+    //run sheet tasks on SHEET_THREADS threads, checked exceptions of a task are thrown here
+    private void runSheets(List<Callable<Void>> tasks)
+            throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+        if (tasks.isEmpty())
+            return;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(Math.min(app.sheet_threads, tasks.size()), 1));
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    if (cause instanceof OpenXML4JException)
+                        throw (OpenXML4JException) cause;
+                    if (cause instanceof SAXException)
+                        throw (SAXException) cause;
+                    if (cause instanceof ParserConfigurationException)
+                        throw (ParserConfigurationException) cause;
+                    if (cause instanceof Error)
+                        throw (Error) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Excel2MySQL.exit(-11);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    //a full batch of valid rows from one of the sheets
+    void batchDone(RowBatch batch) {
+        if (app.delta != null && !app.isUpsert())
+            app.delta.filter(batch);
+
+        synchronized (this) {
+            pendingBatches++;
+        }
+
+        if (inserter != null && !app.isUpsert()) {
+            inserter.submit(batch);
+        } else {
+            synchronized (correctRows) {
+                correctRows.add(batch);
+            }
+        }
+    }
+
+    //called by the insert stage once a batch is committed or discarded
+    synchronized void batchFinished() {
+        pendingBatches--;
+        notifyAll();
+    }
+
+    //print the counts of each sheet, rows are rejected by the DB until the insert stage is done with the file
+    void printSummary() {
+        for (SheetImporter sheet : sheets)
+            sheet.printSummary();
+    }
+
+    //wait until the insert stage is done with all batches of this file
+    synchronized void awaitInserted() {
+        try {
+            while (pendingBatches > 0)
+                wait();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Excel2MySQL.exit(-11);
+        }
+    }
+
+    int getValidRows() {
+        int rows = 0;
+        for (SheetImporter sheet : sheets)
+            rows += sheet.getValidRows();
+
+        return rows;
+    }
+
+    int getInvalidRows() {
+        int rows = 0;
+        for (SheetImporter sheet : sheets)
+            rows += sheet.getInvalidRows();
+
+        return rows;
+    }
+
+    int getRejectedRows() {
+        int rows = 0;
+        for (SheetImporter sheet : sheets)
+            rows += sheet.getRejectedRows();
+
+        return rows;
+    }
+
+    int getUnchangedRows() {
+        int rows = 0;
+        for (SheetImporter sheet : sheets)
+            rows += sheet.getUnchangedRows();
+
+        return rows;
+    }
+
+    int getCommittedRows() {
+        int rows = 0;
+        for (SheetImporter sheet : sheets)
+            rows += sheet.getCommittedRows();
+
+        return rows;
+    }
+
+    //write an invalid row to the error file, which is created with the first one
+    synchronized void writeError(String sheetName, int rowNum, String column, String reason, List<String> line) {
+        long start = System.nanoTime();
+        if (errors == null)
+            errors = new ErrorWriter(getErrorFile());
+
+        errors.write(sheetName, rowNum, column, reason, line);
+        app.metrics.add(ImportMetrics.Phase.ERROR_WRITE, System.nanoTime() - start);
+    }
+
+    //error file which is unique by TIMESTAMP
+    private String getErrorFile() {
+        long now = System.currentTimeMillis();
+        String excel_error_file_path = app.excel_error_file_path;
+        if (excel_error_file_path.endsWith(".xlsx"))
+            return excel_error_file_path.split("[.]")[0] + error_suffix + "_" + now + ".xlsx";
+        else
+            return excel_error_file_path + error_suffix + "_" + now + ".xlsx";
+    }
+
+    //error file of this import, null if there is none
+    synchronized String getErrorPath() {
+        return errors == null ? null : errors.error_file;
+    }
+
+    //finish the error file, returns its name
+    //invalid rows of each sheet are in a sheet of the same name
+    synchronized String saveError() {
+        if (errors == null)
+            return null;
+
+        long start = System.nanoTime();
+        try {
+            errors.close();
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        app.metrics.add(ImportMetrics.Phase.ERROR_WRITE, System.nanoTime() - start);
+
+        System.out.println(errors.getRows() + " invalid or rejected rows found. Saved to " + errors.error_file);
+
+        return errors.error_file;
+    }
+}
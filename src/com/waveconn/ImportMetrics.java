@@ -0,0 +1,397 @@
+package com.waveconn;
+
+import javax.management.ObjectName;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of one run
+ *
+ * Time is summed for each phase over all threads: opening workbooks (with EVALUATE_ALL),
+ * parsing and validating rows, binding and executing inserts, commits and writing the error file. Parse time of a sheet
+ * is the time of its reader less the time spent validating its rows. Batch latency is measured
+ * from the first statement of a batch to its commit and counted in a histogram. Invalid rows are
+ * counted by column and by reason.
+ *
+ * The counters can be updated from any thread. They are shown over JMX while the import runs
+ * and printed, and written to METRICS_FILE as JSON, at the end. Each run registers a name of its own,
+ * com.waveconn:type=Excel2MySQL,name="<file>",id=<n>, so imports running side by side in one JVM,
+ * like the jobs of the server, are shown apart and each one removes only its own view.
+ *
+ */
+class ImportMetrics implements ImportMetricsMBean {
+    static final String OBJECT_NAME = "com.waveconn:type=Excel2MySQL";
+
+    //tells apart the runs of one JVM
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    //upper bounds of the batch latency buckets in ms
+    static final long[] LATENCY_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    enum Phase {
+        OPEN, PARSE, VALIDATE, BIND, EXECUTE, COMMIT, ERROR_WRITE
+    }
+
+    private final long start = System.nanoTime();
+    private volatile long end = 0;
+
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+    private final LongAdder validRows = new LongAdder();
+    private final LongAdder invalidRows = new LongAdder();
+    private final LongAdder committedRows = new LongAdder();
+    private final LongAdder rejectedRows = new LongAdder();
+
+    private final LongAdder batches = new LongAdder();
+    private final AtomicLongArray latency = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+
+    private final Map<String, LongAdder> errorsByColumn = new ConcurrentHashMap();
+    private final Map<String, LongAdder> errorsByReason = new ConcurrentHashMap();
+
+    private final List<SheetMetrics> sheets = Collections.synchronizedList(new ArrayList());
+
+    private ObjectName objectName = null;
+
+    ImportMetrics() {
+        for (int i = 0; i < phaseNanos.length; i++)
+            phaseNanos[i] = new LongAdder();
+    }
+
+    void add(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+    }
+
+    void validRows(int rows) {
+        validRows.add(rows);
+    }
+
+    //a row of the error file, column is empty for rows rejected by the DB, which are counted by batchCommitted()
+    void invalidRow(String column, String reason) {
+        if (!column.isEmpty())
+            invalidRows.increment();
+        errorsByColumn.computeIfAbsent(column.isEmpty() ? "DB" : column, k -> new LongAdder()).increment();
+        errorsByReason.computeIfAbsent(column.isEmpty() ? "rejected by DB" : reason, k -> new LongAdder()).increment();
+    }
+
+    //a batch from its first statement to its commit
+    void batchCommitted(int committed, int rejected, long nanos) {
+        committedRows.add(committed);
+        rejectedRows.add(rejected);
+        batches.increment();
+
+        long ms = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && ms >= LATENCY_BUCKETS[bucket])
+            bucket++;
+        latency.incrementAndGet(bucket);
+    }
+
+    //a sheet is read and validated, nanos is the time of its reader
+    void sheetDone(String file, SheetImporter sheet, long nanos) {
+        long parse = Math.max(nanos - sheet.getValidateNanos(), 0);
+        add(Phase.PARSE, parse);
+        add(Phase.VALIDATE, sheet.getValidateNanos());
+
+        sheets.add(new SheetMetrics(file, sheet.sheetName, sheet.plan.getDb_table(), nanos, parse,
+                sheet.getValidateNanos(), sheet.getFormulaNanos(), sheet.getValidRows(), sheet.getInvalidRows()));
+    }
+
+    //show the metrics over JMX under the name of the file imported, a failure only costs the JMX view
+    void register(String name) {
+        try {
+            objectName = new ObjectName(OBJECT_NAME + ",name=" + ObjectName.quote(name)
+                    + ",id=" + ids.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            System.out.println("Metrics not registered with JMX: " + e);
+            objectName = null;
+        }
+    }
+
+    //stop the clock and remove the JMX view registered by this run
+    void finish() {
+        end = System.nanoTime();
+
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                //already gone
+            }
+            objectName = null;
+        }
+    }
+
+    void print() {
+        System.out.println("Rows: " + getValidRows() + " valid, " + getCommittedRows() + " committed, "
+                + getInvalidRows() + " invalid, " + getRejectedRows() + " rejected by DB in "
+                + getElapsedMillis() + " ms, " + String.format("%.1f", getRowsPerSecond()) + " rows/s");
+
+        StringBuilder phases = new StringBuilder("Time (ms):");
+        for (Phase phase : Phase.values())
+            phases.append(' ').append(phase.name().toLowerCase()).append('=').append(millis(phase));
+        System.out.println(phases);
+
+        StringBuilder histogram = new StringBuilder("Batch latency (ms):");
+        for (int i = 0; i <= LATENCY_BUCKETS.length; i++)
+            histogram.append(' ').append(getBucketName(i)).append('=').append(latency.get(i));
+        System.out.println(histogram);
+
+        for (Map.Entry<String, Long> e : sorted(errorsByColumn).entrySet())
+            System.out.println("Invalid rows in column " + e.getKey() + ": " + e.getValue());
+        for (Map.Entry<String, Long> e : sorted(errorsByReason).entrySet())
+            System.out.println("Invalid rows " + e.getKey() + ": " + e.getValue());
+    }
+
+    //write the report as JSON
+    void save(String metrics_file) {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(metrics_file), StandardCharsets.UTF_8)) {
+            out.write(getReport());
+            System.out.println("Metrics saved to " + metrics_file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private long millis(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum() / 1000000;
+    }
+
+    private static String getBucketName(int i) {
+        return i < LATENCY_BUCKETS.length ? "<" + LATENCY_BUCKETS[i] : ">=" + LATENCY_BUCKETS[i - 1];
+    }
+
+    private static Map<String, Long> sorted(Map<String, LongAdder> counts) {
+        Map<String, Long> sorted = new TreeMap();
+        for (Map.Entry<String, LongAdder> e : counts.entrySet())
+            sorted.put(e.getKey(), e.getValue().sum());
+
+        return sorted;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return ((end != 0 ? end : System.nanoTime()) - start) / 1000000;
+    }
+
+    @Override
+    public long getValidRows() {
+        return validRows.sum();
+    }
+
+    @Override
+    public long getInvalidRows() {
+        return invalidRows.sum();
+    }
+
+    @Override
+    public long getCommittedRows() {
+        return committedRows.sum();
+    }
+
+    @Override
+    public long getRejectedRows() {
+        return rejectedRows.sum();
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        long ms = getElapsedMillis();
+        return ms == 0 ? 0 : getCommittedRows() * 1000.0 / ms;
+    }
+
+    @Override
+    public long getOpenMillis() {
+        return millis(Phase.OPEN);
+    }
+
+    @Override
+    public long getParseMillis() {
+        return millis(Phase.PARSE);
+    }
+
+    @Override
+    public long getValidateMillis() {
+        return millis(Phase.VALIDATE);
+    }
+
+    @Override
+    public long getBindMillis() {
+        return millis(Phase.BIND);
+    }
+
+    @Override
+    public long getExecuteMillis() {
+        return millis(Phase.EXECUTE);
+    }
+
+    @Override
+    public long getCommitMillis() {
+        return millis(Phase.COMMIT);
+    }
+
+    @Override
+    public long getErrorWriteMillis() {
+        return millis(Phase.ERROR_WRITE);
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long[] getBatchLatencyHistogram() {
+        long[] counts = new long[latency.length()];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = latency.get(i);
+
+        return counts;
+    }
+
+    @Override
+    public long[] getBatchLatencyBuckets() {
+        return LATENCY_BUCKETS.clone();
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"elapsed_ms\": ").append(getElapsedMillis()).append(",\n");
+        json.append("  \"rows\": {\"valid\": ").append(getValidRows())
+                .append(", \"invalid\": ").append(getInvalidRows())
+                .append(", \"committed\": ").append(getCommittedRows())
+                .append(", \"rejected\": ").append(getRejectedRows()).append("},\n");
+        json.append("  \"rows_per_second\": ").append(String.format(Locale.ROOT, "%.1f", getRowsPerSecond())).append(",\n");
+
+        json.append("  \"phases_ms\": {");
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0)
+                json.append(", ");
+            json.append('"').append(phase.name().toLowerCase()).append("\": ").append(millis(phase));
+        }
+        json.append("},\n");
+
+        json.append("  \"batches\": ").append(getBatches()).append(",\n");
+        json.append("  \"batch_latency_ms\": {");
+        for (int i = 0; i <= LATENCY_BUCKETS.length; i++) {
+            if (i > 0)
+                json.append(", ");
+            json.append('"').append(getBucketName(i)).append("\": ").append(latency.get(i));
+        }
+        json.append("},\n");
+
+        json.append("  \"errors_by_column\": ");
+        appendCounts(json, sorted(errorsByColumn));
+        json.append(",\n");
+        json.append("  \"errors_by_reason\": ");
+        appendCounts(json, sorted(errorsByReason));
+        json.append(",\n");
+
+        json.append("  \"sheets\": [");
+        synchronized (sheets) {
+            for (int i = 0; i < sheets.size(); i++) {
+                json.append(i > 0 ? ",\n    " : "\n    ");
+                sheets.get(i).append(json);
+            }
+        }
+        json.append(sheets.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+
+        return json.toString();
+    }
+
+    private static void appendCounts(StringBuilder json, Map<String, Long> counts) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Long> e : counts.entrySet()) {
+            if (!first)
+                json.append(", ");
+            appendString(json, e.getKey());
+            json.append(": ").append(e.getValue());
+            first = false;
+        }
+        json.append('}');
+    }
+
+    static void appendString(StringBuilder json, String v) {
+        json.append('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    //times of one sheet
+    private static class SheetMetrics {
+        final String file;
+        final String sheet;
+        final String table;
+        final long totalNanos;
+        final long parseNanos;
+        final long validateNanos;
+        final long formulaNanos;
+        final int validRows;
+        final int invalidRows;
+
+        SheetMetrics(String file, String sheet, String table, long totalNanos, long parseNanos,
+                     long validateNanos, long formulaNanos, int validRows, int invalidRows) {
+            this.file = file;
+            this.sheet = sheet;
+            this.table = table;
+            this.totalNanos = totalNanos;
+            this.parseNanos = parseNanos;
+            this.validateNanos = validateNanos;
+            this.formulaNanos = formulaNanos;
+            this.validRows = validRows;
+            this.invalidRows = invalidRows;
+        }
+
+        void append(StringBuilder json) {
+            json.append("{\"file\": ");
+            appendString(json, file);
+            json.append(", \"sheet\": ");
+            appendString(json, sheet);
+            json.append(", \"table\": ");
+            appendString(json, table);
+            json.append(", \"total_ms\": ").append(totalNanos / 1000000)
+                    .append(", \"parse_ms\": ").append(parseNanos / 1000000)
+                    .append(", \"validate_ms\": ").append(validateNanos / 1000000)
+                    .append(", \"formula_ms\": ").append(formulaNanos / 1000000)
+                    .append(", \"valid_rows\": ").append(validRows)
+                    .append(", \"invalid_rows\": ").append(invalidRows).append('}');
+        }
+    }
+}
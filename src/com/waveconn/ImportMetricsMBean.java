@@ -0,0 +1,47 @@
+package com.waveconn;
+
+/**
+ * JMX view of the metrics of a running import
+ *
+ * Registered as com.waveconn:type=Excel2MySQL,name="<file>",id=<n> while dbImport() or a server import runs.
+ * Times are in milliseconds, summed over all threads.
+ *
+ */
+public interface ImportMetricsMBean {
+    long getElapsedMillis();
+
+    long getValidRows();
+
+    long getInvalidRows();
+
+    long getCommittedRows();
+
+    long getRejectedRows();
+
+    double getRowsPerSecond();
+
+    long getOpenMillis();
+
+    long getParseMillis();
+
+    long getValidateMillis();
+
+    long getBindMillis();
+
+    long getExecuteMillis();
+
+    long getCommitMillis();
+
+    long getErrorWriteMillis();
+
+    long getBatches();
+
+    //batch counts by latency, see getBatchLatencyBuckets()
+    long[] getBatchLatencyHistogram();
+
+    //upper bounds of the histogram buckets in ms, the last bucket has none
+    long[] getBatchLatencyBuckets();
+
+    //the whole report as JSON
+    String getReport();
+}
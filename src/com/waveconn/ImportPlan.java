@@ -0,0 +1,134 @@
+package com.waveconn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Compiled Excel to DB mapping of one import
+ *
+ * Built once from the dbMap read from the init file. Column c of the plan is the c-th mapping
+ * in Excel column order, which is also the column order of RowBatch and of the insert statements.
+ * Excel column index, type and the maximum length used for truncation are kept in plain arrays,
+ * so the row loop does not look up mappings and no state is shared between imports.
+ *
+ * With WRITE_MODE=UPSERT the statements update the rows whose key is already in the table,
+ * and the plan columns of the key set with COL_X_KEY are kept for deduplication, see KeySet.
+ *
+ * DATE columns get a DateParser with the formatters of their COL_X_FORMAT, built here once.
+ * BOOL columns of a BIT(1) or TINYINT(1) DB column are sent as 1 or 0 instead of their text.
+ *
+ */
+final class ImportPlan {
+    private final String db_table;
+    private final List<Mapping> dbMap;
+    private final boolean upsert;
+
+    private final int[] excelCols;
+    private final Type[] types;
+    private final int[] lens;
+    //null for columns which are not DATE
+    private final DateParser[] dates;
+    //plan columns of the key
+    private final int[] keyCols;
+    //BOOL columns sent as 1 or 0
+    private final boolean[] bits;
+
+    ImportPlan(String db_table, List<Mapping> dbMap) {
+        this(db_table, dbMap, false);
+    }
+
+    ImportPlan(String db_table, List<Mapping> dbMap, boolean upsert) {
+        this.db_table = db_table;
+        this.dbMap = Collections.unmodifiableList(new ArrayList(dbMap));
+        this.upsert = upsert;
+
+        int numCols = dbMap.size();
+        excelCols = new int[numCols];
+        types = new Type[numCols];
+        lens = new int[numCols];
+        dates = new DateParser[numCols];
+        bits = new boolean[numCols];
+
+        for (int c = 0; c < numCols; c++) {
+            Mapping m = dbMap.get(c);
+            excelCols[c] = m.getExcel_col();
+            types[c] = m.getType();
+            bits[c] = m.getType() == Type.BOOLEAN && m.isBit();
+
+            switch (m.getType()) {
+                case DATE:
+                    lens[c] = Excel2MySQL.DB_DATE_LEN;
+                    dates[c] = new DateParser(m.getFormat());
+                    break;
+                case BOOLEAN:
+                    lens[c] = Excel2MySQL.DB_BOOL_LEN;
+                    break;
+                default:
+                    lens[c] = m.getLen() == -1 ? Excel2MySQL.DB_STRING_LEN_DEFAULT : m.getLen();
+                    break;
+            }
+        }
+
+        keyCols = IntStream.range(0, numCols).filter(c -> dbMap.get(c).isKey()).toArray();
+    }
+
+    String getDb_table() {
+        return db_table;
+    }
+
+    List<Mapping> getDbMap() {
+        return dbMap;
+    }
+
+    //number of mapped columns
+    int size() {
+        return excelCols.length;
+    }
+
+    int getExcel_col(int c) {
+        return excelCols[c];
+    }
+
+    Type getType(int c) {
+        return types[c];
+    }
+
+    //values longer than this are truncated
+    int getLen(int c) {
+        return lens[c];
+    }
+
+    DateParser getDateParser(int c) {
+        return dates[c];
+    }
+
+    //a BOOL column of a BIT(1) or TINYINT(1) DB column
+    boolean isBit(int c) {
+        return bits[c];
+    }
+
+    boolean isUpsert() {
+        return upsert;
+    }
+
+    int[] getKeyCols() {
+        return keyCols;
+    }
+
+    String getInsertString(int rows) {
+        if (upsert)
+            return Mapping.getUpsertString(dbMap, db_table, rows);
+
+        return Mapping.getInsertString(dbMap, db_table, rows);
+    }
+
+    String getLoadDataString() {
+        return Mapping.getLoadDataString(dbMap, db_table);
+    }
+
+    int getRowWidth() {
+        return Mapping.getRowWidth(dbMap);
+    }
+}
@@ -0,0 +1,347 @@
+package com.waveconn;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Import server, started with java Excel2MySQL -server <init_file>
+ *
+ * Listens on SERVER_PORT of the loopback address only, so the JVM, POI and the DB connections stay warm
+ * between imports. Each upload is imported as one file on one of SERVER_THREADS threads:
+ *
+ *   POST /import?file=orders.xlsx&profile=orders   body is the file, the reply is a JSON summary
+ *   GET /errors/<job>                               error workbook of a job, deleted once sent
+ *
+ * profile names an init file next to the server's init file, orders.ini here; without it the server's
+ * own init file is used. Its EXCEL_FILE_PATH and EXCEL_ERROR_FILE_PATH are replaced by the upload.
+ * The file name tells the type of the file, as for EXCEL_FILE_PATH. An error workbook which is not
+ * fetched is deleted ERRORS_TTL after its import, the ones left are deleted when the server stops.
+ *
+ * All imports share one ConnectionPool, and the ImportPlans of each profile are kept until its init file
+ * changes, so a later import of the same profile does not resolve its columns again.
+ * Errors which end a command line run fail only the import they happen in, see Excel2MySQL.exit().
+ *
+ */
+class ImportServer {
+    //names of profiles and jobs, nothing which can leave their directory
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final Pattern FILE_NAME = Pattern.compile("[A-Za-z0-9_ .-]+\\.(xlsx|xls|csv|tsv|tab|txt)",
+            Pattern.CASE_INSENSITIVE);
+    //error workbooks are kept this long for GET /errors/<job>
+    static final long ERRORS_TTL = TimeUnit.HOURS.toMillis(1);
+
+    private final File init_file;
+    private final HttpServer http;
+    private final ExecutorService threads;
+    private final ConnectionPool pool;
+    //uploads and error files, a directory for each job
+    private final Path work;
+    //jobs whose error workbook was not fetched yet, with the time it was saved
+    private final Map<String, Long> errorJobs = new ConcurrentHashMap();
+    //deletes the error workbooks older than ERRORS_TTL
+    private final ScheduledExecutorService sweeper;
+
+    //plans of each profile with the time its init file was changed
+    private final Map<String, ProfilePlans> plans = new ConcurrentHashMap();
+
+    //an import ended by Excel2MySQL.exit() in server mode
+    static class ImportFailed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ImportFailed(int status) {
+            super("Import failed with status " + status);
+            this.status = status;
+        }
+    }
+
+    private static class ProfilePlans {
+        final long modified;
+        final Map<String, ImportPlan> plans = new ConcurrentHashMap();
+
+        ProfilePlans(long modified) {
+            this.modified = modified;
+        }
+    }
+
+    static void serve(String initFile) {
+        Excel2MySQL.server = true;
+
+        //the server's init file is read like a profile, so it is checked before the server starts
+        Excel2MySQL app = new Excel2MySQL();
+        try {
+            app.init(initFile);
+
+            ImportServer server = new ImportServer(new File(initFile), app.server_port, app.server_threads,
+                    app.pool_size);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            server.start();
+
+            System.out.println("Import server listening on http://localhost:" + server.getPort()
+                    + "/import with " + app.server_threads + " threads");
+        } catch (ImportFailed e) {
+            System.exit(e.status);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-4);
+        }
+    }
+
+    ImportServer(File init_file, int server_port, int server_threads, int pool_size) throws IOException {
+        this.init_file = init_file.getAbsoluteFile();
+
+        work = Files.createTempDirectory("excel2mysql");
+        pool = new ConnectionPool(pool_size);
+        threads = Executors.newFixedThreadPool(Math.max(server_threads, 1));
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), server_port), 0);
+        http.createContext("/import", this::handleImport);
+        http.createContext("/errors/", this::handleErrors);
+        http.setExecutor(threads);
+    }
+
+    void start() {
+        http.start();
+        sweeper.scheduleWithFixedDelay(this::deleteExpired, 1, 1, TimeUnit.MINUTES);
+    }
+
+    void stop() {
+        http.stop(0);
+        threads.shutdown();
+        sweeper.shutdownNow();
+        pool.close();
+        delete(work);
+    }
+
+    //port the server listens on, for SERVER_PORT=0
+    int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    private void handleImport(HttpExchange exchange) throws IOException {
+        Path dir = null;
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                error(exchange, 405, "POST the file to import");
+                return;
+            }
+
+            Map<String, String> params = getParams(exchange);
+            String name = params.getOrDefault("file", "upload.xlsx");
+            if (!FILE_NAME.matcher(name).matches()) {
+                error(exchange, 400, "Not a file name of .xlsx, .xls, .csv or .tsv: " + name);
+                return;
+            }
+
+            File profile = getProfile(params.get("profile"));
+            if (profile == null) {
+                error(exchange, 404, "No such profile: " + params.get("profile"));
+                return;
+            }
+
+            dir = Files.createTempDirectory(work, "job");
+            Path upload = dir.resolve(name);
+            try (InputStream in = exchange.getRequestBody()) {
+                Files.copy(in, upload);
+            }
+
+            FileImport file = importUpload(dir, upload, profile);
+            String json = getReply(dir, file);
+
+            //only the error file is kept
+            Files.delete(upload);
+            if (findErrorFile(dir) == null)
+                delete(dir);
+            else
+                errorJobs.put(dir.getFileName().toString(), System.currentTimeMillis());
+            dir = null;
+
+            //the file could not be read or inserted
+            reply(exchange, file.status.startsWith("FAILED") ? 422 : 200, json);
+        } catch (ImportFailed e) {
+            error(exchange, 500, e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            error(exchange, 500, e.toString());
+        } finally {
+            if (dir != null)
+                delete(dir);
+            exchange.close();
+        }
+    }
+
+    //import the uploaded file with the profile
+    private FileImport importUpload(Path dir, Path upload, File profile) {
+        Excel2MySQL app = new Excel2MySQL();
+        app.pool = pool;
+        app.plans = getPlans(profile);
+        app.init(profile.getPath());
+        app.excel_file_path = upload.toString();
+        app.excel_error_file_path = dir.resolve("errors").toString();
+
+        FileImport file = new FileImport(app, app.excel_file_path);
+        String summary = app.importUpload(file);
+        System.out.println("Job " + dir.getFileName() + ": " + summary);
+
+        return file;
+    }
+
+    //JSON summary of an import
+    private static String getReply(Path dir, FileImport file) {
+        String job = dir.getFileName().toString();
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"job\": ");
+        ImportMetrics.appendString(json, job);
+        json.append(",\n  \"file\": ");
+        ImportMetrics.appendString(json, new File(file.excel_file_path).getName());
+        json.append(",\n  \"status\": ");
+        ImportMetrics.appendString(json, file.status);
+        json.append(",\n  \"valid_rows\": ").append(file.getValidRows());
+        json.append(",\n  \"inserted_rows\": ").append(file.getCommittedRows());
+        json.append(",\n  \"invalid_rows\": ").append(file.getInvalidRows());
+        json.append(",\n  \"rejected_rows\": ").append(file.getRejectedRows());
+        json.append(",\n  \"errors\": ");
+        if (file.getErrorPath() != null)
+            ImportMetrics.appendString(json, "/errors/" + job);
+        else
+            json.append("null");
+        json.append(",\n  \"metrics\": ").append(file.app.metrics.getReport().trim());
+        json.append("\n}\n");
+
+        return json.toString();
+    }
+
+    //the error workbook of a job, the job is forgotten once it is sent
+    private void handleErrors(HttpExchange exchange) throws IOException {
+        try {
+            String job = exchange.getRequestURI().getPath().substring("/errors/".length());
+            Path dir = work.resolve(job);
+            //taken off the list while it is sent, so deleteExpired() leaves it alone
+            Long saved = NAME.matcher(job).matches() ? errorJobs.remove(job) : null;
+            File error_file = saved != null ? findErrorFile(dir) : null;
+            if (error_file == null) {
+                error(exchange, 404, "No error file of job " + job);
+                return;
+            }
+
+            boolean sent = false;
+            try {
+                exchange.getResponseHeaders().set("Content-Type",
+                        "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+                exchange.getResponseHeaders().set("Content-Disposition",
+                        "attachment; filename=\"" + error_file.getName() + "\"");
+                exchange.sendResponseHeaders(200, error_file.length());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    Files.copy(error_file.toPath(), out);
+                }
+                sent = true;
+            } finally {
+                if (sent)
+                    delete(dir);
+                else
+                    errorJobs.put(job, saved);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    //delete the error workbooks which were not fetched within ERRORS_TTL
+    private void deleteExpired() {
+        long expired = System.currentTimeMillis() - ERRORS_TTL;
+        for (Map.Entry<String, Long> e : errorJobs.entrySet()) {
+            if (e.getValue() < expired && errorJobs.remove(e.getKey(), e.getValue())) {
+                delete(work.resolve(e.getKey()));
+                System.out.println("Job " + e.getKey() + ": error file not fetched, deleted");
+            }
+        }
+    }
+
+    private static File findErrorFile(Path dir) {
+        File[] files = dir.toFile().listFiles((d, name) -> name.endsWith(".xlsx"));
+        return files == null || files.length == 0 ? null : files[0];
+    }
+
+    //init file of a profile, the server's own without a name, null if there is none
+    private File getProfile(String name) {
+        if (name == null)
+            return init_file;
+
+        if (!NAME.matcher(name).matches())
+            return null;
+
+        File profile = new File(init_file.getParentFile(), name + ".ini");
+        return profile.isFile() ? profile : null;
+    }
+
+    //plans of a profile, new ones once its init file is changed
+    private Map<String, ImportPlan> getPlans(File profile) {
+        long modified = profile.lastModified();
+        return plans.compute(profile.getPath(),
+                (path, p) -> p != null && p.modified == modified ? p : new ProfilePlans(modified)).plans;
+    }
+
+    private static Map<String, String> getParams(HttpExchange exchange) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return params;
+
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0)
+                params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+        }
+
+        return params;
+    }
+
+    private static void error(HttpExchange exchange, int code, String message) throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\": ");
+        ImportMetrics.appendString(json, message);
+        reply(exchange, code, json.append("}\n").toString());
+    }
+
+    private static void reply(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void delete(Path dir) {
+        File[] files = dir.toFile().listFiles();
+        if (files != null)
+            for (File f : files)
+                if (f.isDirectory())
+                    delete(f.toPath());
+                else
+                    f.delete();
+
+        dir.toFile().delete();
+    }
+}
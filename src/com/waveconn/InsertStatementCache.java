@@ -0,0 +1,128 @@
+package com.waveconn;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Multi-row INSERT statements of one connection
+ *
+ * A batch is sent as INSERT ... VALUES (...),(...),... statements of rowsPerStatement rows,
+ * so each round trip carries many rows even when the driver does not rewrite batches.
+ * The rows left over at the end of a batch are sent with a statement of their own size.
+ * Only the statements of full size and of the rows left over by a full batch are kept for each ImportPlan.
+ * Other sizes come from the last batch of a sheet or from retries of rejected batches in halves, they are
+ * prepared when needed and closed by release(), so the statements kept do not grow with the bisections.
+ *
+ * With ROWS_PER_INSERT=0 the statement size is worked out from max_allowed_packet of the server
+ * and the worst case row width in UTF-8 bytes, so a statement with inlined values stays within half of it.
+ *
+ */
+class InsertStatementCache implements AutoCloseable {
+    //used when the server does not report max_allowed_packet
+    static final long DEFAULT_MAX_ALLOWED_PACKET = 4 * 1024 * 1024;
+    //placeholder limit of the MySQL protocol
+    static final int MAX_PARAMETERS = 65535;
+
+    private final Connection con;
+    private final int rows_per_insert;
+    private final int bulk_size;
+    private long maxAllowedPacket = -1;
+
+    private final Map<ImportPlan, Integer> rowsPerStatement = new HashMap();
+    private final Map<ImportPlan, Map<Integer, PreparedStatement>> statements = new HashMap();
+
+    InsertStatementCache(Connection con, int rows_per_insert, int bulk_size) {
+        this.con = con;
+        this.rows_per_insert = rows_per_insert;
+        this.bulk_size = bulk_size;
+    }
+
+    int getRowsPerStatement(ImportPlan plan) {
+        Integer rows = rowsPerStatement.get(plan);
+        if (rows == null) {
+            rows = computeRowsPerStatement(plan);
+            rowsPerStatement.put(plan, rows);
+        }
+
+        return rows;
+    }
+
+    private int computeRowsPerStatement(ImportPlan plan) {
+        int rows = rows_per_insert;
+        if (rows <= 0) {
+            if (maxAllowedPacket < 0)
+                maxAllowedPacket = getMaxAllowedPacket();
+
+            long budget = maxAllowedPacket / 2;
+            rows = (int) Math.min(Integer.MAX_VALUE, budget / plan.getRowWidth());
+        }
+
+        rows = Math.min(rows, MAX_PARAMETERS / Math.max(plan.size(), 1));
+        rows = Math.min(rows, Math.max(bulk_size, 1));
+
+        return Math.max(rows, 1);
+    }
+
+    //get the statement inserting the given number of rows, prepared on first use;
+    //hand it back with release() once it is executed
+    PreparedStatement get(ImportPlan plan, int rows) throws SQLException {
+        if (!isKept(plan, rows))
+            return con.prepareStatement(plan.getInsertString(rows));
+
+        Map<Integer, PreparedStatement> bySize = statements.computeIfAbsent(plan, p -> new HashMap());
+
+        PreparedStatement ps = bySize.get(rows);
+        if (ps == null) {
+            ps = con.prepareStatement(plan.getInsertString(rows));
+            bySize.put(rows, ps);
+        }
+
+        return ps;
+    }
+
+    //close a statement of a size which is not kept, a kept one drops rows left bound by a failed batch
+    void release(ImportPlan plan, int rows, PreparedStatement ps) throws SQLException {
+        if (isKept(plan, rows))
+            ps.clearBatch();
+        else
+            ps.close();
+    }
+
+    //full statements and the rest of a full batch are used for every batch
+    private boolean isKept(ImportPlan plan, int rows) {
+        int rowsPerStatement = getRowsPerStatement(plan);
+        return rows == rowsPerStatement || rows == bulk_size % rowsPerStatement;
+    }
+
+    private long getMaxAllowedPacket() {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT @@max_allowed_packet")) {
+            if (rs.next())
+                return rs.getLong(1);
+        } catch (SQLException e) {
+            //not MySQL, use the default
+        }
+
+        return DEFAULT_MAX_ALLOWED_PACKET;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        SQLException first = null;
+        for (Map<Integer, PreparedStatement> bySize : statements.values()) {
+            for (PreparedStatement ps : bySize.values()) {
+                try {
+                    ps.close();
+                } catch (SQLException e) {
+                    if (first == null) first = e;
+                }
+            }
+        }
+
+        statements.clear();
+
+        if (first != null)
+            throw first;
+    }
+}
@@ -0,0 +1,141 @@
+package com.waveconn;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Keys of the rows of one file going into one table, for WRITE_MODE=UPSERT
+ *
+ * Batches are added in file order. A row whose key was seen before takes the place of the earlier row,
+ * which is marked and taken out of its batch by dropDuplicates(), so only the last row of each key is sent.
+ *
+ * Keys are hashed to 64 bits into an open addressing table of primitive arrays, with the batch and row
+ * of the last row of each key. Rows of the same hash are compared value by value, so rows with different
+ * keys are never dropped. A row with a null key column is never a duplicate, the same as in a MySQL
+ * unique index.
+ *
+ */
+class KeySet {
+    private final ImportPlan plan;
+    private final int[] keyCols;
+
+    private final List<RowBatch> batches = new ArrayList();
+    //rows of each batch replaced by a later row of the same key
+    private final List<BitSet> dropped = new ArrayList();
+
+    //slots of the table, batch index + 1 and row of a key, 0 for an empty slot
+    private long[] hashes = new long[1024];
+    private int[] slotBatches = new int[1024];
+    private int[] slotRows = new int[1024];
+    private int size = 0;
+
+    KeySet(ImportPlan plan) {
+        this.plan = plan;
+        this.keyCols = plan.getKeyCols();
+    }
+
+    //add the rows of the next batch of the file
+    void add(RowBatch batch) {
+        int b = batches.size();
+        batches.add(batch);
+        dropped.add(new BitSet());
+
+        for (int row = 0; row < batch.size(); row++) {
+            if (hasNullKey(batch, row))
+                continue;
+
+            if (size * 2 >= hashes.length)
+                grow();
+
+            long h = batch.hash(row, keyCols);
+            int mask = hashes.length - 1;
+            int slot = (int) h & mask;
+            while (slotBatches[slot] != 0) {
+                if (hashes[slot] == h && keyEquals(batches.get(slotBatches[slot] - 1), slotRows[slot], batch, row))
+                    break;
+                slot = (slot + 1) & mask;
+            }
+
+            if (slotBatches[slot] != 0)
+                dropped.get(slotBatches[slot] - 1).set(slotRows[slot]);
+            else
+                size++;
+
+            hashes[slot] = h;
+            slotBatches[slot] = b + 1;
+            slotRows[slot] = row;
+        }
+    }
+
+    //take the replaced rows out of their batches, returns the number of rows taken out
+    int dropDuplicates() {
+        int total = 0;
+        for (int b = 0; b < batches.size(); b++) {
+            int n = dropped.get(b).cardinality();
+            if (n == 0)
+                continue;
+
+            RowBatch batch = batches.get(b);
+            batch.removeRows(dropped.get(b));
+            batch.sheet.rowsDropped(n);
+            total += n;
+        }
+
+        return total;
+    }
+
+    private void grow() {
+        long[] oldHashes = hashes;
+        int[] oldBatches = slotBatches;
+        int[] oldRows = slotRows;
+
+        hashes = new long[oldHashes.length * 2];
+        slotBatches = new int[oldHashes.length * 2];
+        slotRows = new int[oldHashes.length * 2];
+
+        int mask = hashes.length - 1;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldBatches[i] == 0)
+                continue;
+
+            int slot = (int) oldHashes[i] & mask;
+            while (slotBatches[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            hashes[slot] = oldHashes[i];
+            slotBatches[slot] = oldBatches[i];
+            slotRows[slot] = oldRows[i];
+        }
+    }
+
+    private boolean hasNullKey(RowBatch batch, int row) {
+        for (int c : keyCols)
+            if (batch.isNull(c, row))
+                return true;
+
+        return false;
+    }
+
+    private boolean keyEquals(RowBatch a, int rowA, RowBatch b, int rowB) {
+        for (int c : keyCols) {
+            switch (plan.getType(c)) {
+                case INTEGER:
+                case DATE:
+                    if (a.getLong(c, rowA) != b.getLong(c, rowB))
+                        return false;
+                    break;
+                case NUMBER:
+                    if (a.getDouble(c, rowA) != b.getDouble(c, rowB))
+                        return false;
+                    break;
+                default:
+                    if (!a.getString(c, rowA).equals(b.getString(c, rowB)))
+                        return false;
+                    break;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,115 @@
+package com.waveconn;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lines of a sheet validated together on the validation pool
+ *
+ * The reading thread fills a chunk with up to CHUNK_SIZE lines and submits it to the ForkJoinPool of
+ * VALIDATE_THREADS; a worker validates them with a RowValidator of its own into the chunk's RowBatch.
+ * The reading thread takes the chunks back in the order they were submitted and replays their rows,
+ * see SheetImporter, so batches, checkpoints and the error file are the same as with one thread.
+ *
+ * Rows committed by an earlier run are marked by the reading thread, as Checkpoint.Ranges is looked up
+ * in row order. Lines are kept until the chunk is replayed only for the rows which failed.
+ *
+ */
+class LineChunk extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    static final int CHUNK_SIZE = 1024;
+
+    //result of a valid row
+    static final int VALID = -1;
+    //result of a row committed by an earlier run
+    static final int COMMITTED = -2;
+
+    private final ImportPlan plan;
+
+    private final int[] rowNums = new int[CHUNK_SIZE];
+    private final List<String>[] lines = new List[CHUNK_SIZE];
+    private int size = 0;
+
+    //for each row VALID, COMMITTED or the column of the plan which failed, with why
+    private final int[] results = new int[CHUNK_SIZE];
+    private final String[] reasons = new String[CHUNK_SIZE];
+    //the valid rows in order
+    private final RowBatch batch;
+
+    private long nanos = 0;
+
+    LineChunk(ImportPlan plan, SheetImporter sheet) {
+        this.plan = plan;
+        this.batch = new RowBatch(plan, sheet, CHUNK_SIZE);
+    }
+
+    //line must not be changed by the reader afterwards
+    void add(int rowNum, List<String> line) {
+        rowNums[size] = rowNum;
+        lines[size] = line;
+        results[size] = VALID;
+        size++;
+    }
+
+    void addCommitted(int rowNum) {
+        rowNums[size] = rowNum;
+        results[size] = COMMITTED;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size >= CHUNK_SIZE;
+    }
+
+    @Override
+    protected void compute() {
+        long start = System.nanoTime();
+
+        RowValidator validator = new RowValidator(plan, batch);
+        for (int i = 0; i < size; i++) {
+            if (results[i] == COMMITTED)
+                continue;
+
+            int c = validator.validateLine(lines[i]);
+            if (c >= 0) {
+                results[i] = c;
+                reasons[i] = validator.reason;
+            } else {
+                batch.addRow(rowNums[i]);
+                lines[i] = null;
+            }
+        }
+
+        nanos = System.nanoTime() - start;
+    }
+
+    int getRowNum(int i) {
+        return rowNums[i];
+    }
+
+    int getResult(int i) {
+        return results[i];
+    }
+
+    String getReason(int i) {
+        return reasons[i];
+    }
+
+    List<String> getLine(int i) {
+        return lines[i];
+    }
+
+    RowBatch getBatch() {
+        return batch;
+    }
+
+    //time the worker spent validating
+    long getNanos() {
+        return nanos;
+    }
+}
@@ -1,7 +1,6 @@
 package com.waveconn;
 
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * DataType Mapping from Excel to DB
@@ -17,6 +16,9 @@ public class Mapping implements Comparable<Mapping> {
     String db_col;          //DB column name
     Type type;              //column type, default is STRING
     int len;                //column len if type is STRING, default is 256
+    boolean key;            //part of the key rows are upserted and deduplicated by
+    String format;          //date patterns if type is DATE, null for ISO dates only
+    boolean bit;            //BOOL column stored in a BIT(1) or TINYINT(1) DB column, see ColumnMetadata
 
     Mapping(String excel_sym, String db_col) {
         this.excel_sym = excel_sym;
@@ -42,6 +44,30 @@ public class Mapping implements Comparable<Mapping> {
         this.len = len;
     }
 
+    boolean isKey() {
+        return this.key;
+    }
+
+    void setKey(boolean key) {
+        this.key = key;
+    }
+
+    boolean isBit() {
+        return this.bit;
+    }
+
+    void setBit(boolean bit) {
+        this.bit = bit;
+    }
+
+    String getFormat() {
+        return this.format;
+    }
+
+    void setFormat(String format) {
+        this.format = format;
+    }
+
     String getExcel_sym() {
         return this.excel_sym;
     }
@@ -77,42 +103,90 @@ public class Mapping implements Comparable<Mapping> {
 
     //get SQL string prepared for SQL insert statement
     static String getInsertString(List<Mapping> dbMap, String db_table) {
-        int numCols = dbMap.size();
+        return getInsertString(dbMap, db_table, 1);
+    }
 
-        String values = new String(new char[numCols]).replace("\0", "?,").substring(0, numCols * 2 - 1);
+    //get SQL string prepared for SQL insert statement with rows VALUES lists
+    static String getInsertString(List<Mapping> dbMap, String db_table, int rows) {
+        int numCols = dbMap.size();
 
-        StringBuilder columns = new StringBuilder();
-        for (Mapping m : dbMap)
-            if (columns.length() == 0)
-                columns.append(m.getDb_col());
-            else
-                columns.append("," + m.getDb_col());
+        String values = "(" + new String(new char[numCols]).replace("\0", "?,").substring(0, numCols * 2 - 1) + ")";
 
-        String insertString =
-                "INSERT INTO " + db_table + " (" + columns.toString() + ")" +
-                        " VALUES (" + values + ")";
+        StringBuilder insertString = new StringBuilder(
+                "INSERT INTO " + db_table + " (" + getColumns(dbMap) + ")" +
+                        " VALUES " + values);
+        for (int i = 1; i < rows; i++)
+            insertString.append(',').append(values);
 
-        return insertString;
+        return insertString.toString();
     }
 
-    //get db mapping for this Excel column index
-    static Mapping getMapping(List<Mapping> dbMap, int excel_col_index) {
-        return dbMap.stream()
-                .filter(m -> m.getExcel_col() == excel_col_index)
-                .findFirst().orElse(null);
+    //get SQL string inserting rows VALUES lists and updating the rows whose key is already in the table;
+    //columns which are not keys are updated, all of them if no key column is set
+    static String getUpsertString(List<Mapping> dbMap, String db_table, int rows) {
+        StringBuilder update = new StringBuilder();
+        boolean hasValues = dbMap.stream().anyMatch(m -> !m.isKey());
+        for (Mapping m : dbMap) {
+            if (hasValues && m.isKey())
+                continue;
+
+            if (update.length() > 0)
+                update.append(',');
+            update.append(m.getDb_col()).append("=VALUES(").append(m.getDb_col()).append(')');
+        }
+
+        return getInsertString(dbMap, db_table, rows) + " ON DUPLICATE KEY UPDATE " + update;
     }
 
-    //does this Excel column index get mapped into DB?
-    static boolean isDb_Col(List<Mapping> dbMap, int excel_col_index) {
-        if (dbMap == null)
-            return false;
+    //worst case length in bytes of one row in an insert statement with its values inlined;
+    //a char of a string takes up to 4 bytes in utf8mb4, and 2 if it is escaped
+    static int getRowWidth(List<Mapping> dbMap) {
+        int width = 3;  //"()," around the row
+        for (Mapping m : dbMap) {
+            width += 3; //quotes and comma around the value
+            switch (m.getType()) {
+                case INTEGER:
+                    width += 20;
+                    break;
+                case NUMBER:
+                    width += 24;
+                    break;
+                case STRING:
+                    width += 4 * (m.getLen() == -1 ? Excel2MySQL.DB_STRING_LEN_DEFAULT : m.getLen());
+                    break;
+                case DATE:
+                    width += Excel2MySQL.DB_DATE_LEN;
+                    break;
+                case BOOLEAN:
+                    width += Excel2MySQL.DB_BOOL_LEN;
+                    break;
+            }
+        }
+
+        return width;
+    }
 
-        if (import_excel_cols == null)
-            import_excel_cols = dbMap.stream().map(m -> m.getExcel_col()).collect(Collectors.toList());
+    //get SQL string for LOAD DATA from a tab separated stream in the default MySQL escaping
+    static String getLoadDataString(List<Mapping> dbMap, String db_table) {
+        String loadString =
+                "LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + db_table +
+                        " CHARACTER SET utf8mb4" +
+                        " FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\'" +
+                        " LINES TERMINATED BY '\\n'" +
+                        " (" + getColumns(dbMap) + ")";
 
-        return import_excel_cols.contains(excel_col_index);
+        return loadString;
     }
 
-    //performance hack
-    static private List<Integer> import_excel_cols;
+    //comma separated DB column names in mapping order
+    private static String getColumns(List<Mapping> dbMap) {
+        StringBuilder columns = new StringBuilder();
+        for (Mapping m : dbMap)
+            if (columns.length() == 0)
+                columns.append(m.getDb_col());
+            else
+                columns.append("," + m.getDb_col());
+
+        return columns.toString();
+    }
 }
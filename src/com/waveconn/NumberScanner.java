@@ -0,0 +1,167 @@
+package com.waveconn;
+
+/**
+ * Validates and parses INTEGER and NUMBER cell text without exceptions
+ *
+ * scanLong accepts what Long.parseLong accepts for ASCII digits, scanDouble accepts decimal
+ * notation as Double.parseDouble does but rejects NaN, Infinity, hexadecimal and values
+ * out of double range, none of which MySQL can store.
+ * On success the value is left in longValue or doubleValue, so nothing is allocated.
+ * Decimals with up to 15 significant digits and a small exponent are converted directly,
+ * longer ones are handed to Double.parseDouble once their syntax is known to be valid.
+ *
+ * One scanner must not be shared between threads.
+ *
+ */
+class NumberScanner {
+    //powers of ten exactly representable as double
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    //significant digits whose value is below 2^53
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    long longValue;
+    double doubleValue;
+
+    //[+-]digits within long range
+    boolean scanLong(String s) {
+        int len = s.length();
+        if (len == 0)
+            return false;
+
+        int i = 0;
+        boolean negative = false;
+        char first = s.charAt(0);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (len == 1)
+                return false;
+            i++;
+        }
+
+        //accumulate negatively as Long.parseLong does, so Long.MIN_VALUE fits
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long result = 0;
+        for (; i < len; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                return false;
+            if (result < multmin)
+                return false;
+            result *= 10;
+            if (result < limit + digit)
+                return false;
+            result -= digit;
+        }
+
+        longValue = negative ? result : -result;
+        return true;
+    }
+
+    //[+-](digits[.digits]|.digits)[(e|E)[+-]digits][fFdD], surrounded by optional whitespace
+    boolean scanDouble(String s) {
+        int i = 0;
+        int len = s.length();
+        while (i < len && s.charAt(i) <= ' ')
+            i++;
+        while (len > i && s.charAt(len - 1) <= ' ')
+            len--;
+        if (i == len)
+            return false;
+
+        boolean negative = false;
+        char first = s.charAt(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean digits = false;
+
+        for (; i < len; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                break;
+            digits = true;
+            if (mantissa != 0 || digit != 0)
+                significant++;
+            if (significant <= MAX_EXACT_DIGITS)
+                mantissa = mantissa * 10 + digit;
+            else
+                exponent++;
+        }
+
+        if (i < len && s.charAt(i) == '.') {
+            i++;
+            for (; i < len; i++) {
+                int digit = s.charAt(i) - '0';
+                if (digit < 0 || digit > 9)
+                    break;
+                digits = true;
+                if (mantissa != 0 || digit != 0)
+                    significant++;
+                if (significant <= MAX_EXACT_DIGITS) {
+                    mantissa = mantissa * 10 + digit;
+                    exponent--;
+                }
+            }
+        }
+
+        if (!digits)
+            return false;
+
+        if (i < len && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < len && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+                negativeExp = s.charAt(i) == '-';
+                i++;
+            }
+
+            int exp = 0;
+            boolean expDigits = false;
+            for (; i < len; i++) {
+                int digit = s.charAt(i) - '0';
+                if (digit < 0 || digit > 9)
+                    break;
+                expDigits = true;
+                if (exp < 100000)
+                    exp = exp * 10 + digit;
+            }
+
+            if (!expDigits)
+                return false;
+
+            exponent += negativeExp ? -exp : exp;
+        }
+
+        //type suffix accepted by Double.parseDouble
+        if (i < len && "fFdD".indexOf(s.charAt(i)) >= 0)
+            i++;
+
+        if (i != len)
+            return false;
+
+        double value;
+        if (significant <= MAX_EXACT_DIGITS && exponent >= -22 && exponent <= 22) {
+            //both operands are exact, so one rounding gives the correctly rounded result
+            value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+            if (negative)
+                value = -value;
+        } else {
+            value = Double.parseDouble(s);
+        }
+
+        if (Double.isInfinite(value))
+            return false;
+
+        doubleValue = value;
+        return true;
+    }
+}
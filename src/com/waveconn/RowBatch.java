@@ -0,0 +1,267 @@
+package com.waveconn;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Validated rows stored column by column
+ *
+ * Columns follow the order of the ImportPlan. INTEGER and DATE columns are kept in long[], NUMBER columns
+ * in double[] and STRING, BOOLEAN columns in String[], with a null bitmap for every column.
+ * Dates are longs as DateParser makes them.
+ * Validation writes each value once into the row being built and binding reads it back directly,
+ * so cells are parsed only once and numbers are not boxed.
+ *
+ * A row is written with the set methods and kept by addRow(); a row that fails validation is
+ * simply not added and is overwritten by the next one. For checkpoints the batch also records the
+ * range of sheet rows it covers, including the invalid rows between its valid ones.
+ * Rows taken out by removeRows() stay inside that range.
+ *
+ * With DELTA_TABLE set each row also carries the fingerprint saved with it on commit, see Delta.
+ *
+ */
+class RowBatch {
+    final ImportPlan plan;
+    //the sheet the rows come from
+    final SheetImporter sheet;
+
+    private final int capacity;
+    private int size = 0;
+
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final String[][] strings;
+    private final long[][] nulls;
+
+    //sheet row of each kept row
+    private final int[] rowNums;
+    //first and last sheet row covered by the batch
+    private int firstRow = 0;
+    private int lastRow = -1;
+
+    //fingerprint of each row to be saved on commit, 0 for none; null without DELTA_TABLE
+    private long[] fingerprints = null;
+
+    RowBatch(ImportPlan plan, SheetImporter sheet, int capacity) {
+        this.plan = plan;
+        this.sheet = sheet;
+        this.capacity = capacity;
+
+        int numCols = plan.size();
+        longs = new long[numCols][];
+        doubles = new double[numCols][];
+        strings = new String[numCols][];
+        nulls = new long[numCols][(capacity + 63) >>> 6];
+        rowNums = new int[capacity];
+
+        for (int c = 0; c < numCols; c++) {
+            switch (plan.getType(c)) {
+                case INTEGER:
+                case DATE:
+                    longs[c] = new long[capacity];
+                    break;
+                case NUMBER:
+                    doubles[c] = new double[capacity];
+                    break;
+                case STRING:
+                case BOOLEAN:
+                    strings[c] = new String[capacity];
+                    break;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean isFull() {
+        return size >= capacity;
+    }
+
+    //keep the row built by the set methods, rowNum is its 0-based row in the sheet
+    void addRow(int rowNum) {
+        rowNums[size] = rowNum;
+        lastRow = rowNum;
+        size++;
+    }
+
+    //take out the rows set in drop, the rows after them move up
+    void removeRows(BitSet drop) {
+        int n = 0;
+        for (int row = 0; row < size; row++) {
+            if (drop.get(row))
+                continue;
+
+            if (n != row)
+                copyRow(row, n);
+            n++;
+        }
+
+        for (String[] col : strings)
+            if (col != null)
+                Arrays.fill(col, n, size, null);
+
+        size = n;
+    }
+
+    private void copyRow(int from, int to) {
+        rowNums[to] = rowNums[from];
+        if (fingerprints != null)
+            fingerprints[to] = fingerprints[from];
+
+        copyValues(this, from, to);
+    }
+
+    //write the values of a row of another batch of the same plan into the row being built
+    void setRow(RowBatch batch, int row) {
+        copyValues(batch, row, size);
+    }
+
+    private void copyValues(RowBatch batch, int from, int to) {
+        for (int c = 0; c < plan.size(); c++) {
+            if (longs[c] != null)
+                longs[c][to] = batch.longs[c][from];
+            else if (doubles[c] != null)
+                doubles[c][to] = batch.doubles[c][from];
+            else
+                strings[c][to] = batch.strings[c][from];
+
+            if (batch.isNull(c, from))
+                nulls[c][to >>> 6] |= 1L << to;
+            else
+                nulls[c][to >>> 6] &= ~(1L << to);
+        }
+    }
+
+    void setFirstRow(int firstRow) {
+        this.firstRow = firstRow;
+    }
+
+    int getFirstRow() {
+        return firstRow;
+    }
+
+    //sheet row of the last row added, rows are added in sheet order
+    int getLastRow() {
+        return lastRow;
+    }
+
+    int getRowNum(int row) {
+        return rowNums[row];
+    }
+
+    void setFingerprint(int row, long fingerprint) {
+        if (fingerprints == null)
+            fingerprints = new long[capacity];
+
+        fingerprints[row] = fingerprint;
+    }
+
+    //0 if the row has no fingerprint to save
+    long getFingerprint(int row) {
+        return fingerprints == null ? 0 : fingerprints[row];
+    }
+
+    void setLong(int col, long v) {
+        longs[col][size] = v;
+        clearNull(col);
+    }
+
+    void setDouble(int col, double v) {
+        doubles[col][size] = v;
+        clearNull(col);
+    }
+
+    void setString(int col, String v) {
+        strings[col][size] = v;
+        clearNull(col);
+    }
+
+    void setNull(int col) {
+        nulls[col][size >>> 6] |= 1L << size;
+    }
+
+    private void clearNull(int col) {
+        nulls[col][size >>> 6] &= ~(1L << size);
+    }
+
+    long getLong(int col, int row) {
+        return longs[col][row];
+    }
+
+    double getDouble(int col, int row) {
+        return doubles[col][row];
+    }
+
+    String getString(int col, int row) {
+        return strings[col][row];
+    }
+
+    boolean isNull(int col, int row) {
+        return (nulls[col][row >>> 6] & (1L << row)) != 0;
+    }
+
+    //64-bit hash of the values of the given columns of a row, nulls included
+    long hash(int row, int[] cols) {
+        long h = 0;
+        for (int c : cols) {
+            long v;
+            if (isNull(c, row)) {
+                v = 0x5555555555555555L;
+            } else {
+                switch (plan.getType(c)) {
+                    case INTEGER:
+                    case DATE:
+                        v = longs[c][row];
+                        break;
+                    case NUMBER:
+                        //-0.0 and 0.0 are the same value
+                        v = Double.doubleToLongBits(doubles[c][row] + 0.0);
+                        break;
+                    default:
+                        v = hash(strings[c][row]);
+                        break;
+                }
+            }
+
+            h = (h ^ v) * 0x9E3779B97F4A7C15L;
+        }
+
+        //spread the high bits into the low bits
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    //FNV-1a over the chars
+    private static long hash(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++)
+            h = (h ^ s.charAt(i)) * 0x100000001B3L;
+
+        return h;
+    }
+
+    //value as a string for the error file, empty if null
+    String format(int col, int row) {
+        if (isNull(col, row))
+            return "";
+
+        switch (plan.getType(col)) {
+            case INTEGER:
+                return Long.toString(longs[col][row]);
+            case DATE:
+                return DateParser.format(longs[col][row]);
+            case NUMBER:
+                return Double.toString(doubles[col][row]);
+            default:
+                return strings[col][row];
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.waveconn;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Rows of one input file, read into the SheetImporter of each sheet
+ *
+ * A source is opened by its constructor and lists its sheets in file order. Each sheet is read once,
+ * different sheets may be read on different threads. Validation and insert do not depend on the source:
+ * rows go to SheetImporter.rowToData() as cells or as lines of cell strings.
+ *
+ * WorkbookSource reads a workbook into memory, XlsxStreamReader reads .xlsx row by row and CsvReader
+ * reads a CSV or TSV file as a single sheet.
+ *
+ * A line stays valid after rowToData() returns unless it is a ReusedLine.
+ *
+ */
+interface RowSource extends AutoCloseable {
+    //names of the sheets in file order
+    List<String> getSheetNames();
+
+    //validate all rows of a sheet with importer, without finishing it
+    void readSheet(String sheetName, SheetImporter importer)
+            throws IOException, SAXException, ParserConfigurationException;
+
+    //sheets which were not read are skipped
+    @Override
+    void close() throws IOException;
+
+    //a line the source changes for the next row
+    interface ReusedLine {
+        //a copy which stays valid, with its cells still decoded on get()
+        List<String> detach();
+    }
+}
@@ -0,0 +1,126 @@
+package com.waveconn;
+
+import java.util.List;
+
+/**
+ * Type checks of the values of a row against an ImportPlan
+ *
+ * A valid value is written into the row being built in rowBatch; when a value fails, reason tells why.
+ * The scanner is kept with the validator, so a validator must not be shared between threads:
+ * a SheetImporter has one, and each LineChunk validated on the validation pool has its own.
+ *
+ */
+class RowValidator {
+    private final ImportPlan plan;
+    private final NumberScanner scanner = new NumberScanner();
+
+    //the batch valid values are written into
+    RowBatch rowBatch;
+    //why the last value failed validation
+    String reason;
+
+    RowValidator(ImportPlan plan, RowBatch rowBatch) {
+        this.plan = plan;
+        this.rowBatch = rowBatch;
+    }
+
+    //validate the cells of the mapped columns of a line, returns the column of the plan which failed or -1;
+    //cells missing at the end of the row are treated as empty
+    int validateLine(List<String> line) {
+        for (int c = 0; c < plan.size(); c++) {
+            int col = plan.getExcel_col(c);
+            if (!validate(c, col < line.size() ? line.get(col) : ""))
+                return c;
+        }
+
+        return -1;
+    }
+
+    //validate Excel data based on data type Mapping from the init file
+    //the valid value is written into column c of the row being built in rowBatch
+    boolean validate(int c, String v) {
+        int len = plan.getLen(c);
+
+        switch (plan.getType(c)) {
+            case INTEGER: //INT (int or long)
+                if (!scanner.scanLong(v)) {
+                    reason = "not an integer";
+                    return false;
+                }
+                rowBatch.setLong(c, scanner.longValue);
+                return true;
+            case NUMBER: //NUM (int or long or float or double)
+                if (!scanner.scanDouble(v)) {
+                    reason = "not a number";
+                    return false;
+                }
+                rowBatch.setDouble(c, scanner.doubleValue);
+                return true;
+            case STRING: //STR
+                if (v.length() > len)
+                    v = v.substring(0, len);
+                rowBatch.setString(c, v);
+                return true;
+            case DATE: //DATE in COL_X_FORMAT or ISO
+                if (v.trim().isEmpty()) {
+                    rowBatch.setNull(c);
+                    return true;
+                }
+                return validateDate(c, plan.getDateParser(c).parse(v));
+            case BOOLEAN: //BOOL
+                if (v.length() > len)
+                    v = v.substring(0, len);
+                if ("true".equalsIgnoreCase(v)
+                        || "false".equalsIgnoreCase(v)
+                        || "t".equalsIgnoreCase(v)
+                        || "f".equalsIgnoreCase(v)
+                        || "yes".equalsIgnoreCase(v)
+                        || "no".equalsIgnoreCase(v)
+                        || "y".equalsIgnoreCase(v)
+                        || "n".equalsIgnoreCase(v)
+                        ) {
+                    rowBatch.setString(c, v);
+                    return true;
+                }
+                reason = "not a boolean";
+                return false;
+        }
+
+        reason = "unknown type";
+        return false;
+    }
+
+    //a valid BOOL value which is true: true, t, yes or y in any case
+    static boolean isTrue(String v) {
+        char first = Character.toLowerCase(v.charAt(0));
+        return first == 't' || first == 'y';
+    }
+
+    //validate a numeric cell value of an INTEGER or NUMBER column
+    boolean validate(int c, double v) {
+        if (plan.getType(c) == Type.NUMBER) {
+            rowBatch.setDouble(c, v);
+            return true;
+        }
+
+        //INTEGER takes whole numbers within long range only
+        if (v != Math.rint(v) || v < -0x1p63 || v >= 0x1p63) {
+            reason = "not an integer";
+            return false;
+        }
+
+        rowBatch.setLong(c, (long) v);
+        return true;
+    }
+
+    //a DATE value as DateParser makes it, null if the cell was not a date
+    boolean validateDate(int c, Long v) {
+        if (v == null) {
+            reason = "not a date";
+            return false;
+        }
+
+        rowBatch.setLong(c, v);
+        return true;
+    }
+}
@@ -0,0 +1,220 @@
+package com.waveconn;
+
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared strings of a streamed .xlsx file kept in temp files instead of the heap
+ *
+ * sharedStrings.xml is parsed once into two temp files: the UTF-8 bytes of all strings one after another,
+ * and the offset of each string as a long. A string is read back with two positional reads, and the
+ * SHARED_STRINGS_CACHE strings used last are cached, so memory does not grow with the number of strings.
+ * Text of phonetic runs is part of the string, the same as ReadOnlySharedStringsTable reads it.
+ *
+ * Lookups are synchronized, so the sheets of a workbook read on different threads share one table.
+ *
+ */
+class SharedStringsFile extends ReadOnlySharedStringsTable implements Closeable {
+    private final Path stringsPath;
+    private final Path offsetsPath;
+    private FileChannel stringsFile;
+    private FileChannel offsetsFile;
+
+    private int count;
+    private int uniqueCount;
+
+    private final Map<Integer, String> cache;
+    //offset of a string and of the next one
+    private final ByteBuffer offsetPair = ByteBuffer.allocate(16);
+
+    SharedStringsFile(PackagePart part, int cache_size) throws IOException, SAXException {
+        //the constructor of ReadOnlySharedStringsTable reads the part with readFrom(), which does nothing here
+        super(part);
+
+        cache = new LinkedHashMap<Integer, String>(Math.min(cache_size, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > cache_size;
+            }
+        };
+
+        stringsPath = Files.createTempFile("excel2mysql", ".strings");
+        offsetsPath = Files.createTempFile("excel2mysql", ".offsets");
+        try (InputStream in = part.getInputStream()) {
+            write(in);
+
+            stringsFile = FileChannel.open(stringsPath, StandardOpenOption.READ);
+            offsetsFile = FileChannel.open(offsetsPath, StandardOpenOption.READ);
+        } catch (IOException | SAXException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void readFrom(InputStream is) throws IOException {
+        is.close();
+    }
+
+    //parse sharedStrings.xml into the temp files
+    private void write(InputStream in) throws IOException, SAXException {
+        try (OutputStream strings = new BufferedOutputStream(Files.newOutputStream(stringsPath), 1 << 16);
+             DataOutputStream offsets = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(offsetsPath), 1 << 16))) {
+
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(new DefaultHandler() {
+                private final StringBuilder characters = new StringBuilder();
+                private boolean tIsOpen = false;
+                private long offset = 0;
+
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes)
+                        throws SAXException {
+                    switch (localName) {
+                        case "sst":
+                            count = parseCount(attributes.getValue("count"));
+                            uniqueCount = parseCount(attributes.getValue("uniqueCount"));
+                            break;
+                        case "si":
+                            characters.setLength(0);
+                            break;
+                        case "t":
+                            tIsOpen = true;
+                            break;
+                    }
+                }
+
+                @Override
+                public void endElement(String uri, String localName, String qName) throws SAXException {
+                    try {
+                        if ("si".equals(localName)) {
+                            byte[] bytes = characters.toString().getBytes(StandardCharsets.UTF_8);
+                            offsets.writeLong(offset);
+                            strings.write(bytes);
+                            offset += bytes.length;
+                        } else if ("t".equals(localName)) {
+                            tIsOpen = false;
+                        } else if ("sst".equals(localName)) {
+                            //end of the last string
+                            offsets.writeLong(offset);
+                        }
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                }
+
+                @Override
+                public void characters(char[] ch, int start, int length) {
+                    if (tIsOpen)
+                        characters.append(ch, start, length);
+                }
+            });
+            parser.parse(new InputSource(in));
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e);
+        } catch (SAXException e) {
+            if (e.getException() instanceof IOException)
+                throw (IOException) e.getException();
+            throw e;
+        }
+    }
+
+    private static int parseCount(String v) {
+        return v == null ? 0 : Integer.parseInt(v);
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public int getUniqueCount() {
+        return uniqueCount;
+    }
+
+    @Override
+    public synchronized String getEntryAt(int idx) {
+        String v = cache.get(idx);
+        if (v != null)
+            return v;
+
+        try {
+            offsetPair.clear();
+            readFully(offsetsFile, offsetPair, (long) idx * 8);
+            long start = offsetPair.getLong(0);
+            long end = offsetPair.getLong(8);
+
+            ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+            readFully(stringsFile, bytes, start);
+            v = new String(bytes.array(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        cache.put(idx, v);
+        return v;
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = file.read(buffer, position);
+            if (n < 0)
+                throw new IndexOutOfBoundsException("No shared string at " + position);
+            position += n;
+        }
+    }
+
+    //the strings read one by one from the temp files
+    @Override
+    public List<String> getItems() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return getEntryAt(index);
+            }
+
+            @Override
+            public int size() {
+                try {
+                    return (int) (offsetsFile.size() / 8) - 1;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (stringsFile != null)
+                stringsFile.close();
+            if (offsetsFile != null)
+                offsetsFile.close();
+        } finally {
+            Files.deleteIfExists(stringsPath);
+            Files.deleteIfExists(offsetsPath);
+        }
+    }
+}
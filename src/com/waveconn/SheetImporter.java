@@ -0,0 +1,499 @@
+package com.waveconn;
+
+import org.apache.poi.ss.usermodel.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Validation state of one sheet
+ *
+ * Rows of the sheet are validated against the ImportPlan of the sheet's target table.
+ * Valid values are written into a RowBatch which is handed to the FileImport once it holds
+ * BULK_SIZE rows; invalid rows are written to the error file of the FileImport as soon as they are found,
+ * with the first column that failed and why.
+ * Formatter and validator belong to this sheet only, so sheets can be validated
+ * on different threads, and so does the formula evaluator.
+ *
+ * With FORMULA_MODE=EVALUATE the formula cells of the sheet are evaluated once before its rows are validated,
+ * which fills the cache of the evaluator, and the cached values are taken when the cells are read;
+ * otherwise the results stored with the cells are used. The time spent on formula cells is counted for each sheet.
+ *
+ * Numeric cells of DATE columns, and formulas with a number result, are taken as Excel serial dates;
+ * other cells of DATE columns are parsed as text with the DateParser of the column. An empty DATE is null.
+ *
+ * Rows rejected by the DB are written to the error file by the insert stage.
+ *
+ * With VALIDATE_THREADS above 1, lines handed over by the streaming and CSV readers are validated in
+ * LineChunks on the validation pool. Chunks are taken back in the order they were read and replayed row
+ * by row on the reading thread, so batches, checkpoint ranges and error rows come out in sheet order
+ * as with one thread. Rows of a workbook loaded into memory are always validated on the reading thread,
+ * as POI cells are formatted with a formatter of the sheet.
+ *
+ * When an earlier run is resumed, rows inside its committed ranges are skipped before validation.
+ *
+ */
+class SheetImporter {
+    final FileImport file;
+    final String sheetName;
+    final ImportPlan plan;
+
+    private final int bulk_size;
+    //committed by an earlier run, null if there is none
+    private final Checkpoint.Ranges committed;
+
+    private final RowValidator validator;
+    private final DataFormatter formatter = new DataFormatter(true);
+    private final CellFormatter cellFormatter = new CellFormatter(formatter);
+    //null if cached formula results are used
+    private FormulaEvaluator evaluator = null;
+    //serial dates of the workbook count from 1904
+    private boolean date1904 = false;
+
+    private int formulaCells = 0;
+    private long formulaNanos = 0;
+    private long validateNanos = 0;
+
+    private final ImportMetrics metrics;
+
+    //the batch valid rows are written into
+    private RowBatch rowBatch;
+    private int validRows = 0;
+    private int skippedRows = 0;
+    //last sheet row covered by a batch handed on or by an earlier run
+    private int coveredRow = -1;
+    //updated by the insert stage
+    private final AtomicInteger committedRows = new AtomicInteger();
+    private final AtomicInteger rejectedRows = new AtomicInteger();
+    //rows failing validation, counted apart from the rows rejected by the DB
+    private final AtomicInteger invalidRows = new AtomicInteger();
+    //valid rows replaced by a later row of the same key
+    private int droppedRows = 0;
+    //valid rows the same as in the previous run
+    private int unchangedRows = 0;
+
+    //pool validating chunks of lines, null to validate them on the reading thread
+    private final ForkJoinPool validators;
+    //the chunk being filled and the chunks submitted, oldest first
+    private LineChunk chunk = null;
+    private final ArrayDeque<LineChunk> pending = new ArrayDeque();
+
+    SheetImporter(FileImport file, String sheetName, ImportPlan plan, int bulk_size, Checkpoint.Ranges committed) {
+        this.file = file;
+        this.sheetName = sheetName;
+        this.plan = plan;
+        this.bulk_size = Math.max(bulk_size, 1);
+        this.committed = committed;
+        this.metrics = file.app.metrics;
+
+        rowBatch = new RowBatch(plan, this, this.bulk_size);
+        validator = new RowValidator(plan, rowBatch);
+        validators = file.app.validators;
+    }
+
+    //validate all rows of a sheet loaded into memory, evaluator is null to use cached formula results;
+    //the evaluator is used by this sheet only
+    void importSheet(Sheet sheet, boolean is_read_first_line, FormulaEvaluator evaluator) {
+        this.evaluator = evaluator;
+        this.date1904 = DateParser.isDate1904(sheet.getWorkbook());
+
+        if (evaluator != null)
+            evaluateFormulas(sheet);
+
+        // Check to see if the sheet contains any rows.
+        if (sheet.getPhysicalNumberOfRows() > 0) {
+
+            // Note down the index number of the bottom-most row and
+            // then iterate through all of the rows on the sheet starting
+            // from the very first row - number 1 - even if it is missing.
+            // Recover a reference to the row and then call another method
+            // which will strip the data from the cells and build lines
+            int lastRowNum = sheet.getLastRowNum();
+
+            int start = 0;
+            if (!is_read_first_line)
+                start = 1;
+
+            for (int j = start; j <= lastRowNum; j++)
+                rowToData(sheet.getRow(j));
+        }
+    }
+
+    //evaluate the formula cells of the sheet once, so the values are cached when the rows are validated
+    private void evaluateFormulas(Sheet sheet) {
+        long start = System.nanoTime();
+        for (Row row : sheet)
+            for (Cell cell : row)
+                if (cell.getCellTypeEnum() == CellType.FORMULA)
+                    evaluator.evaluate(cell);
+
+        formulaNanos += System.nanoTime() - start;
+    }
+
+    //hand on the last batch which is not full, once all rows of the sheet are read
+    void finish() {
+        if (chunk != null)
+            submit();
+        while (!pending.isEmpty())
+            replay(pending.poll());
+
+        batchDone();
+
+        if (formulaCells > 0)
+            System.out.println("Sheet " + sheetName + ": " + formulaCells + " formula cells "
+                    + (evaluator != null ? "evaluated" : "read from cached results")
+                    + " in " + formulaNanos / 1000000 + " ms");
+    }
+
+    //print the counts of the sheet, once the insert stage is done with its batches
+    void printSummary() {
+        System.out.println("Sheet " + sheetName + " -> " + plan.getDb_table() + ": "
+                + validRows + " valid rows, " + invalidRows.get() + " invalid rows, "
+                + rejectedRows.get() + " rows rejected by DB"
+                + (skippedRows > 0 ? ", " + skippedRows + " rows skipped as already imported" : ""));
+    }
+
+    int getValidRows() {
+        return validRows;
+    }
+
+    int getCommittedRows() {
+        return committedRows.get();
+    }
+
+    long getValidateNanos() {
+        return validateNanos;
+    }
+
+    long getFormulaNanos() {
+        return formulaNanos;
+    }
+
+    int getRejectedRows() {
+        return rejectedRows.get();
+    }
+
+    int getInvalidRows() {
+        return invalidRows.get();
+    }
+
+    int getDroppedRows() {
+        return droppedRows;
+    }
+
+    //called once the file is read, for valid rows taken out of their batches as duplicates
+    void rowsDropped(int rows) {
+        droppedRows += rows;
+    }
+
+    int getUnchangedRows() {
+        return unchangedRows;
+    }
+
+    //valid rows taken out of their batch as unchanged since the previous run
+    void rowsUnchanged(int rows) {
+        unchangedRows += rows;
+    }
+
+    //called by the insert stage once a batch of this sheet is committed or discarded
+    void batchInserted(RowBatch batch, int committed) {
+        committedRows.addAndGet(committed);
+
+        file.batchFinished();
+    }
+
+    //a valid row the DB did not take, saved with the values sent and the SQL error
+    void rowRejected(RowBatch batch, int row, String message) {
+        ArrayList<String> line = new ArrayList();
+        for (int c = 0; c < plan.size(); c++) {
+            int col = plan.getExcel_col(c);
+            while (line.size() <= col)
+                line.add("");
+
+            line.set(col, batch.format(c, row));
+        }
+
+        rejectedRows.incrementAndGet();
+        writeError(batch.getRowNum(row), "", message, line);
+    }
+
+    //a row failing validation
+    private void invalidRow(int rowNum, String column, String reason, List<String> line) {
+        invalidRows.incrementAndGet();
+        writeError(rowNum, column, reason, line);
+    }
+
+    //count a row of the error file in the metrics and write it, column is empty for rows rejected by the DB
+    private void writeError(int rowNum, String column, String reason, List<String> line) {
+        metrics.invalidRow(column, reason);
+        file.writeError(sheetName, rowNum, column, reason, line);
+    }
+
+    //a row failing validation in column c of the plan
+    private void invalidRow(int rowNum, int c, List<String> line) {
+        long start = System.nanoTime();
+        invalidRow(rowNum, getColumnName(c), validator.reason, line);
+
+        //writing the error file is not counted as validation
+        validateNanos -= System.nanoTime() - start;
+    }
+
+    //Excel column and DB column of column c of the plan
+    private String getColumnName(int c) {
+        Mapping m = plan.getDbMap().get(c);
+        return m.getExcel_sym() + " (" + m.getDb_col() + ")";
+    }
+
+    //validate Excel row, the time is counted as validation
+    void rowToData(Row row) {
+        long start = System.nanoTime();
+        validateRow(row);
+        validateNanos += System.nanoTime() - start;
+    }
+
+    //validate Excel row cell by cell; numeric cells of INTEGER and NUMBER columns are taken
+    //as numbers and text cells of STRING columns as they are, other cells are formatted to strings first
+    private void validateRow(Row row) {
+        // Check to ensure that a row was recovered from the sheet as it is
+        // possible that one or more rows between other populated rows could be
+        // missing - blank. Missing rows carry no data and are skipped, the
+        // same as the streaming reader which never sees them.
+        if (row == null || isCommitted(row.getRowNum()))
+            return;
+
+        for (int c = 0; c < plan.size(); c++) {
+            Cell cell = row.getCell(plan.getExcel_col(c));
+
+            boolean valid;
+            if (isNumeric(plan.getType(c)) && isNumericValue(cell) && !cellFormatter.isDate(cell))
+                valid = validator.validate(c, cell.getNumericCellValue());
+            else if (plan.getType(c) == Type.STRING && cell != null && cell.getCellTypeEnum() == CellType.STRING)
+                valid = validator.validate(c, cell.getStringCellValue());
+            else if (plan.getType(c) == Type.DATE && cell != null)
+                valid = validateDate(c, cell);
+            else
+                valid = validator.validate(c, formatCell(cell));
+
+            if (!valid) {
+                invalidRow(row.getRowNum(), c, rowToLine(row));
+                return;
+            }
+        }
+
+        addRow(row.getRowNum());
+    }
+
+    //format the whole Excel row into a line of cell strings
+    private ArrayList<String> rowToLine(Row row) {
+        Cell cell = null;
+        int lastCellNum = 0;
+        ArrayList<String> line = new ArrayList();
+
+        // Get the index for the right most cell on the row and then
+        // step along the row from left to right recovering the contents
+        // of each cell, converting that into a formatted String and
+        // then storing the String into the line ArrayList.
+        lastCellNum = row.getLastCellNum();
+        for (int i = 0; i < lastCellNum; i++) {
+            cell = row.getCell(i);
+            line.add(formatCell(cell));
+        }
+
+        return line;
+    }
+
+    //validate a cell of a DATE column, numbers are serial dates and anything else is parsed as text
+    private boolean validateDate(int c, Cell cell) {
+        if (isNumericValue(cell))
+            return validator.validateDate(c, DateParser.fromSerial(cell.getNumericCellValue(), date1904));
+
+        if (cell.getCellTypeEnum() == CellType.FORMULA && evaluator != null) {
+            long start = System.nanoTime();
+            CellValue v = evaluator.evaluate(cell);
+            formulaCells++;
+            formulaNanos += System.nanoTime() - start;
+
+            if (v == null || v.getCellTypeEnum() == CellType.BLANK)
+                return validator.validate(c, "");
+            if (v.getCellTypeEnum() == CellType.NUMERIC)
+                return validator.validateDate(c, DateParser.fromSerial(v.getNumberValue(), date1904));
+            if (v.getCellTypeEnum() == CellType.STRING)
+                return validator.validate(c, v.getStringValue());
+
+            return validator.validateDate(c, null);
+        }
+
+        return validator.validate(c, formatCell(cell));
+    }
+
+    //a number cell, or a formula cell with a cached number result when formulas are not evaluated
+    private boolean isNumericValue(Cell cell) {
+        if (cell == null)
+            return false;
+
+        CellType type = cell.getCellTypeEnum();
+        return type == CellType.NUMERIC
+                || type == CellType.FORMULA && evaluator == null
+                && cell.getCachedFormulaResultTypeEnum() == CellType.NUMERIC;
+    }
+
+    private String formatCell(Cell cell) {
+        if (cell == null)
+            return "";
+
+        if (cell.getCellTypeEnum() != CellType.FORMULA)
+            return this.cellFormatter.format(cell);
+
+        long start = System.nanoTime();
+        String v;
+        if (evaluator != null)
+            v = this.formatter.formatCellValue(cell, this.evaluator);
+        else
+            v = formatCachedResult(cell);
+
+        formulaCells++;
+        formulaNanos += System.nanoTime() - start;
+
+        return v;
+    }
+
+    //format the result stored with a formula cell, the same way DataFormatter formats an evaluated one
+    private String formatCachedResult(Cell cell) {
+        switch (cell.getCachedFormulaResultTypeEnum()) {
+            case NUMERIC:
+                return cellFormatter.formatCachedResult(cell);
+            case STRING:
+                return cell.getRichStringCellValue().getString();
+            case BOOLEAN:
+                return cell.getBooleanCellValue() ? "TRUE" : "FALSE";
+            case ERROR:
+                return FormulaError.forInt(cell.getErrorCellValue()).getString();
+            default:
+                return "";
+        }
+    }
+
+    //validate a line of cell strings, the time is counted as validation;
+    //only the cells of mapped columns are taken from the line unless the row is invalid
+    void rowToData(int rowNum, List<String> line) {
+        if (validators != null) {
+            addLine(rowNum, line);
+            return;
+        }
+
+        long start = System.nanoTime();
+        validateLine(rowNum, line);
+        validateNanos += System.nanoTime() - start;
+    }
+
+    private void validateLine(int rowNum, List<String> line) {
+        if (isCommitted(rowNum))
+            return;
+
+        int c = validator.validateLine(line);
+        if (c >= 0) {
+            invalidRow(rowNum, c, line);
+            return;
+        }
+
+        addRow(rowNum);
+    }
+
+    //row inserted by an earlier run
+    private boolean isCommitted(int rowNum) {
+        if (committed == null || !committed.contains(rowNum))
+            return false;
+
+        skipRow(rowNum);
+        return true;
+    }
+
+    private void skipRow(int rowNum) {
+        //the open batch is handed on first, so its range ends before the committed row
+        //and does not take in its own rows when it is recorded
+        batchDone();
+
+        skippedRows++;
+        coveredRow = rowNum;
+    }
+
+    //add a line to the chunk being filled, detached if the reader reuses it for the next row;
+    //its cells are decoded by the worker, and only those of the mapped columns unless the row is invalid
+    private void addLine(int rowNum, List<String> line) {
+        if (chunk == null)
+            chunk = new LineChunk(plan, this);
+
+        if (committed != null && committed.contains(rowNum))
+            chunk.addCommitted(rowNum);
+        else
+            chunk.add(rowNum, line instanceof RowSource.ReusedLine ? ((RowSource.ReusedLine) line).detach() : line);
+
+        if (chunk.isFull())
+            submit();
+    }
+
+    //submit the chunk being filled and replay the chunks validated so far in order,
+    //waiting for the oldest one once two chunks for each thread of the pool are in flight
+    private void submit() {
+        validators.execute(chunk);
+        pending.add(chunk);
+        chunk = null;
+
+        while (!pending.isEmpty()
+                && (pending.peek().isDone() || pending.size() > 2 * validators.getParallelism()))
+            replay(pending.poll());
+    }
+
+    //go through the rows of a validated chunk as if they were validated here;
+    //validation time is the time of the workers, so it can be more than the time the sheet took
+    private void replay(LineChunk chunk) {
+        chunk.join();
+        validateNanos += chunk.getNanos();
+
+        RowBatch batch = chunk.getBatch();
+        int row = 0;
+        for (int i = 0; i < chunk.size(); i++) {
+            int rowNum = chunk.getRowNum(i);
+            int c = chunk.getResult(i);
+            if (c == LineChunk.COMMITTED) {
+                skipRow(rowNum);
+            } else if (c != LineChunk.VALID) {
+                invalidRow(rowNum, getColumnName(c), chunk.getReason(i), chunk.getLine(i));
+            } else {
+                rowBatch.setRow(batch, row++);
+                addRow(rowNum);
+            }
+        }
+    }
+
+    private static boolean isNumeric(Type type) {
+        return type == Type.INTEGER || type == Type.NUMBER;
+    }
+
+    //keep the validated row and hand the batch on once it is full
+    private void addRow(int rowNum) {
+        rowBatch.addRow(rowNum);
+        if (rowBatch.isFull())
+            batchDone();
+    }
+
+    //hand the batch on and start a new one
+    private void batchDone() {
+        if (rowBatch.isEmpty())
+            return;
+
+        //the batch covers the invalid rows before its first valid one too
+        rowBatch.setFirstRow(coveredRow + 1);
+        coveredRow = rowBatch.getLastRow();
+
+        validRows += rowBatch.size();
+        metrics.validRows(rowBatch.size());
+        file.batchDone(rowBatch);
+
+        rowBatch = new RowBatch(plan, this, bulk_size);
+        validator.rowBatch = rowBatch;
+    }
+}
@@ -8,17 +8,17 @@ package com.waveconn;
  INT : int or long : BIGINT
  NUM : int or long or float or double : DOUBLE
  STR : string with COL_LEN : VARCHAR(COL_LEN) default 256
- DATE : date :VARCHAR(64)
+ DATE : date, with or without time : DATE or DATETIME
  BOOL : true/false or t/f or yes/no or y/n (all strings case-insensitive) : VARCHAR(5)
 
  This means that:
  if the program see an INT it will insert BIGINT in MySQL table;
  if the program see a NUM it will insert DOUBLE in MySQL table;
  if the program see a STR it will insert VARCHAR(COL_LEN) in MySQL table;
- if the program see a DATE it will insert VARCHAR(64) in MySQL table;
+ if the program see a DATE it will insert DATE or DATETIME in MySQL table;
  if the program see a BOOL it will insert VARCHAR(5) in MySQL table;
 
- DATE is currently supported but not invalidated.
+ DATE is a numeric cell holding an Excel serial date, or text in a pattern of COL_X_FORMAT or ISO, see DateParser.
  *
  * Created by Michael Z. on 2015/6/26.
  *
@@ -0,0 +1,71 @@
+package com.waveconn;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Workbook read into memory, .xls or .xlsx
+ *
+ * Cells are validated as they are, see SheetImporter.importSheet(). With FORMULA_MODE=EVALUATE each sheet
+ * gets an evaluator of its own, so sheets read on different threads do not wait for each other;
+ * with EVALUATE_ALL all formulas are evaluated when the workbook is opened and their cached results
+ * are read like with CACHED.
+ *
+ */
+class WorkbookSource implements RowSource {
+    private final boolean is_read_first_line;
+    private final Workbook workbook;
+    //formulas are evaluated by each sheet when read
+    private final boolean evaluate;
+
+    WorkbookSource(Excel2MySQL app, String excel_file_path) throws IOException, InvalidFormatException {
+        this.is_read_first_line = app.is_read_first_line;
+
+        try (FileInputStream excel_file = new FileInputStream(excel_file_path)) {
+            workbook = WorkbookFactory.create(excel_file);
+        }
+
+        evaluate = evaluateFormulas(app.formula_mode);
+    }
+
+    private boolean evaluateFormulas(String formula_mode) {
+        switch (formula_mode) {
+            case "EVALUATE":
+                return true;
+            case "EVALUATE_ALL":
+                long start = System.currentTimeMillis();
+                workbook.getCreationHelper().createFormulaEvaluator().evaluateAll();
+                System.out.println("All formulas evaluated in " + (System.currentTimeMillis() - start) + " ms");
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public List<String> getSheetNames() {
+        List<String> names = new ArrayList();
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++)
+            names.add(workbook.getSheetAt(i).getSheetName());
+
+        return names;
+    }
+
+    @Override
+    public void readSheet(String sheetName, SheetImporter importer) {
+        FormulaEvaluator evaluator = evaluate ? workbook.getCreationHelper().createFormulaEvaluator() : null;
+        importer.importSheet(workbook.getSheet(sheetName), is_read_first_line, evaluator);
+    }
+
+    @Override
+    public void close() throws IOException {
+        workbook.close();
+    }
+}
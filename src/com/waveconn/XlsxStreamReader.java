@@ -0,0 +1,334 @@
+package com.waveconn;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.xmlbeans.XmlException;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.WorkbookDocument;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Streaming reader for .xlsx files
+ *
+ * Sheets are parsed with the XSSF event (SAX) API, so only the current row is held in memory.
+ * Each row is handed out as a line of formatted cell strings, the same as the usermodel path
+ * builds it, so validation gives the same result for the same init file.
+ *
+ * Shared strings and styles are read once and only read afterwards, so different sheets
+ * can be parsed on different threads.
+ *
+ * With SHARED_STRINGS_CACHE above 0 the shared strings are kept in a SharedStringsFile instead of the heap.
+ * Strings of the mapped columns are then looked up as the cells are read; cells of other columns keep
+ * their string index and are looked up only if their line is read, which is when the row is invalid.
+ *
+ * Formula cells are read from their cached results, they are not evaluated.
+ *
+ * Numbers in the mapped columns are not formatted by their cell style, so the same cells are valid as with
+ * the usermodel path, which reads them with getNumericCellValue(). In DATE columns they are converted from
+ * their serial value and handed out as ISO dates, which DateParser takes with any COL_X_FORMAT. In INTEGER
+ * and NUMBER columns they are handed out as their value, a whole number without a decimal point, unless
+ * their style is a date format, which is formatted as before. Other columns are formatted by their style.
+ *
+ */
+class XlsxStreamReader implements RowSource {
+    private final boolean is_read_first_line;
+
+    private final OPCPackage pkg;
+    //a SharedStringsFile with SHARED_STRINGS_CACHE above 0
+    private final ReadOnlySharedStringsTable strings;
+    private final XSSFReader reader;
+    private final StylesTable styles;
+    //serial dates count from 1904
+    private final boolean date1904;
+    //sheets not read yet, keyed by sheet name in workbook order
+    private final LinkedHashMap<String, InputStream> sheets;
+
+    XlsxStreamReader(String excel_file_path, boolean is_read_first_line, int shared_strings_cache)
+            throws IOException, OpenXML4JException, SAXException {
+        this.is_read_first_line = is_read_first_line;
+
+        pkg = OPCPackage.open(excel_file_path, PackageAccess.READ);
+        try {
+            strings = openSharedStrings(shared_strings_cache);
+            reader = new XSSFReader(pkg);
+            styles = reader.getStylesTable();
+            date1904 = isDate1904();
+            sheets = openSheets();
+        } catch (IOException | OpenXML4JException | SAXException | RuntimeException e) {
+            pkg.revert();
+            throw e;
+        }
+    }
+
+    //shared strings in memory, or in a SharedStringsFile caching cache_size of them
+    private ReadOnlySharedStringsTable openSharedStrings(int cache_size) throws IOException, SAXException {
+        List<PackagePart> parts = pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+        if (cache_size <= 0 || parts.isEmpty())
+            return new ReadOnlySharedStringsTable(pkg);
+
+        return new SharedStringsFile(parts.get(0), cache_size);
+    }
+
+    //workbookPr date1904 of the workbook part
+    private boolean isDate1904() throws IOException, OpenXML4JException {
+        try (InputStream in = reader.getWorkbookData()) {
+            CTWorkbook workbook = WorkbookDocument.Factory.parse(in).getWorkbook();
+            return workbook.isSetWorkbookPr() && workbook.getWorkbookPr().getDate1904();
+        } catch (XmlException e) {
+            throw new IOException(e);
+        }
+    }
+
+    //open all sheets in workbook order, keyed by sheet name
+    private LinkedHashMap<String, InputStream> openSheets() throws IOException, OpenXML4JException {
+        LinkedHashMap<String, InputStream> sheets = new LinkedHashMap();
+
+        XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) reader.getSheetsData();
+        while (it.hasNext()) {
+            InputStream sheet = it.next();
+            sheets.put(it.getSheetName(), sheet);
+        }
+
+        return sheets;
+    }
+
+    //receives the rows of a sheet with their 0-based row numbers
+    interface RowHandler {
+        void row(int rowNum, List<String> line);
+    }
+
+    @Override
+    public List<String> getSheetNames() {
+        return new ArrayList(sheets.keySet());
+    }
+
+    @Override
+    public void readSheet(String sheetName, SheetImporter importer)
+            throws IOException, SAXException, ParserConfigurationException {
+        InputStream sheet;
+        synchronized (sheets) {
+            sheet = sheets.remove(sheetName);
+        }
+
+        try (InputStream in = sheet) {
+            readSheet(in, importer.plan, importer::rowToData);
+        }
+    }
+
+    //parse one sheet and pass each row to rowHandler, with the DATE columns of plan as ISO dates
+    void readSheet(InputStream sheet, ImportPlan plan, RowHandler rowHandler)
+            throws IOException, SAXException, ParserConfigurationException {
+        MappedCellFormatter formatter = new MappedCellFormatter(plan);
+        RowCollector collector = new RowCollector(rowHandler);
+        //null to look up all shared strings as the cells are read
+        boolean[] mappedCols = strings instanceof SharedStringsFile ? getMappedCols(plan) : null;
+
+        //tells the formatter the column of each cell before the handler formats it,
+        //and makes the handler hand out the string index of shared strings of unmapped columns
+        XMLFilterImpl parser = new XMLFilterImpl(SAXHelper.newXMLReader()) {
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes atts)
+                    throws SAXException {
+                if ("row".equals(localName)) {
+                    formatter.col = -1;
+                } else if ("c".equals(localName)) {
+                    formatter.startCell(atts.getValue("r"));
+
+                    int col = formatter.col;
+                    collector.isIndex = mappedCols != null && "s".equals(atts.getValue("t"))
+                            && (col >= mappedCols.length || !mappedCols[col]);
+                    if (collector.isIndex) {
+                        //an inline string is handed out as it is
+                        AttributesImpl a = new AttributesImpl(atts);
+                        a.setValue(a.getIndex("t"), "inlineStr");
+                        atts = a;
+                    }
+                }
+
+                super.startElement(uri, localName, qName, atts);
+            }
+        };
+        parser.setContentHandler(new XSSFSheetXMLHandler(
+                styles, strings, collector, formatter, false));
+        parser.parse(new InputSource(sheet));
+    }
+
+    //by Excel column
+    private static boolean[] getMappedCols(ImportPlan plan) {
+        int numCols = 0;
+        for (int c = 0; c < plan.size(); c++)
+            numCols = Math.max(numCols, plan.getExcel_col(c) + 1);
+
+        boolean[] mappedCols = new boolean[numCols];
+        for (int c = 0; c < plan.size(); c++)
+            mappedCols[plan.getExcel_col(c)] = true;
+
+        return mappedCols;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (InputStream sheet : sheets.values())
+                sheet.close();
+        } finally {
+            try {
+                if (strings instanceof SharedStringsFile)
+                    ((SharedStringsFile) strings).close();
+            } finally {
+                pkg.revert();
+            }
+        }
+    }
+
+    //formats numbers of DATE, INTEGER and NUMBER columns from their value, other cells the same as DataFormatter
+    private class MappedCellFormatter extends DataFormatter {
+        //Type of each mapped column by Excel column, null for the others
+        private final Type[] types;
+        //column of the cell being read
+        int col = -1;
+
+        MappedCellFormatter(ImportPlan plan) {
+            super(true);
+
+            int numCols = 0;
+            for (int c = 0; c < plan.size(); c++)
+                numCols = Math.max(numCols, plan.getExcel_col(c) + 1);
+
+            types = new Type[numCols];
+            for (int c = 0; c < plan.size(); c++)
+                types[plan.getExcel_col(c)] = plan.getType(c);
+        }
+
+        //cells without reference follow the one before
+        void startCell(String cellReference) {
+            col = cellReference == null ? col + 1 : new CellReference(cellReference).getCol();
+        }
+
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString) {
+            Type type = col >= 0 && col < types.length ? types[col] : null;
+            if (type == Type.DATE) {
+                Long v = DateParser.fromSerial(value, date1904);
+                if (v != null)
+                    return DateParser.format(v);
+            } else if ((type == Type.INTEGER || type == Type.NUMBER)
+                    && !DateUtil.isADateFormat(formatIndex, formatString)) {
+                return toString(value);
+            }
+
+            return super.formatRawCellContents(value, formatIndex, formatString);
+        }
+
+        //the value as NumberScanner reads it back, whole numbers within long range without a decimal point
+        private String toString(double value) {
+            if (value == Math.rint(value) && value >= -0x1p63 && value < 0x1p63)
+                return Long.toString((long) value);
+
+            return Double.toString(value);
+        }
+    }
+
+    //collects the cells of one row at a time
+    private class RowCollector implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private final RowHandler rowHandler;
+        private ArrayList<String> line;
+        //shared string index of the cells not looked up yet by column, null if there are none in the row
+        private int[] indexes;
+
+        //the value of the cell being read is a shared string index
+        boolean isIndex = false;
+
+        RowCollector(RowHandler rowHandler) {
+            this.rowHandler = rowHandler;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            line = new ArrayList();
+            indexes = null;
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (rowNum == 0 && !is_read_first_line)
+                return;
+
+            rowHandler.row(rowNum, indexes == null ? line : new IndexedLine(line, indexes));
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            //cells without value are not reported, fill the gap with empty strings
+            int col = cellReference == null ? line.size() : new CellReference(cellReference).getCol();
+            while (line.size() < col)
+                line.add("");
+
+            if (isIndex && formattedValue != null) {
+                if (indexes == null)
+                    indexes = new int[col + 8];
+                else if (indexes.length <= col)
+                    indexes = Arrays.copyOf(indexes, col + 8);
+
+                indexes[col] = Integer.parseInt(formattedValue.trim());
+                line.add(null);
+                return;
+            }
+
+            line.add(formattedValue == null ? "" : formattedValue);
+        }
+
+        @Override
+        public void headerFooter(String text, boolean isHeader, String tagName) {
+            //not imported
+        }
+    }
+
+    //a line whose cells of unmapped columns are looked up in the shared strings when they are read
+    private class IndexedLine extends AbstractList<String> {
+        //null where the cell is a shared string index
+        private final ArrayList<String> cells;
+        private final int[] indexes;
+
+        IndexedLine(ArrayList<String> cells, int[] indexes) {
+            this.cells = cells;
+            this.indexes = indexes;
+        }
+
+        @Override
+        public String get(int col) {
+            String v = cells.get(col);
+            return v != null ? v : strings.getEntryAt(indexes[col]);
+        }
+
+        @Override
+        public int size() {
+            return cells.size();
+        }
+    }
+}
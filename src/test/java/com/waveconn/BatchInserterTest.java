@@ -0,0 +1,209 @@
+package com.waveconn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rows rejected by the DB are found by bisection and the rest of their batch is committed
+ *
+ * Batches go into an embedded H2 database in MySQL mode, with a primary key and a CHECK constraint
+ * that some rows break. Rows are rejected exactly when they break one against the rows before them.
+ *
+ */
+public class BatchInserterTest {
+    private static final String DB_URL = "jdbc:h2:mem:bisect;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    private static final int ROWS = 3000;
+
+    //keeps the in-memory DB while the test runs
+    private Connection con;
+
+    @Before
+    public void createTable() throws SQLException {
+        con = DriverManager.getConnection(DB_URL, "sa", "");
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE t (id BIGINT PRIMARY KEY, amount INT CHECK (amount >= 0), "
+                    + "name VARCHAR(16))");
+        }
+    }
+
+    @After
+    public void dropTable() throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("DROP TABLE t");
+        }
+        con.close();
+    }
+
+    @Test
+    public void rowByRow() throws SQLException {
+        insert(100, 1, 1);
+    }
+
+    @Test
+    public void multiRowStatements() throws SQLException {
+        insert(100, 7, 1);
+    }
+
+    @Test
+    public void sizedFromPacket() throws SQLException {
+        insert(1000, 0, 1);
+    }
+
+    @Test
+    public void severalWriters() throws SQLException {
+        insert(64, 0, 4);
+    }
+
+    @Test
+    public void wholeBatchRejected() throws SQLException {
+        Excel2MySQL app = app(10, 0, 1);
+        Recorded file = new Recorded(app);
+        SheetImporter sheet = sheet(file);
+
+        RowBatch batch = new RowBatch(sheet.plan, sheet, 10);
+        for (int i = 0; i < 10; i++)
+            addRow(batch, i, -1, i);
+
+        BatchInserter inserter = new BatchInserter(app);
+        inserter.start();
+        inserter.submit(batch);
+        assertEquals(0, inserter.finish());
+
+        assertEquals(10, file.rejected.size());
+        assertEquals(0, count());
+    }
+
+    //insert random rows, a few of them with a negative amount or the id of an earlier row
+    private void insert(int bulk_size, int rows_per_insert, int insert_threads) throws SQLException {
+        Excel2MySQL app = app(bulk_size, rows_per_insert, insert_threads);
+        Recorded file = new Recorded(app);
+        SheetImporter sheet = sheet(file);
+
+        Random random = new Random(42);
+        long[] ids = new long[ROWS];
+        int[] amounts = new int[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            ids[i] = random.nextInt(100) == 0 && i > 0 ? ids[random.nextInt(i)] : i;
+            amounts[i] = random.nextInt(50) == 0 ? -1 : random.nextInt(1000);
+        }
+
+        BatchInserter inserter = new BatchInserter(app);
+        inserter.start();
+
+        RowBatch batch = new RowBatch(sheet.plan, sheet, bulk_size);
+        for (int i = 0; i < ROWS; i++) {
+            addRow(batch, ids[i], amounts[i], i);
+            if (batch.isFull() || i == ROWS - 1) {
+                inserter.submit(batch);
+                batch = new RowBatch(sheet.plan, sheet, bulk_size);
+            }
+        }
+
+        int committed = inserter.finish();
+
+        //with one writer a row is rejected if its id was taken by an earlier row,
+        //with more the earlier row may come later, but only one of each id gets in
+        Set<Long> taken = new HashSet();
+        Set<Integer> expected = new HashSet();
+        for (int i = 0; i < ROWS; i++) {
+            if (amounts[i] < 0 || insert_threads == 1 && !taken.add(ids[i]))
+                expected.add(i);
+        }
+
+        if (insert_threads == 1)
+            assertEquals(expected, file.rejected.keySet());
+        else
+            assertTrue(file.rejected.keySet().containsAll(expected));
+
+        assertEquals(ROWS - file.rejected.size(), committed);
+        assertEquals(committed, count());
+        assertEquals(committed, sheet.getCommittedRows());
+        assertEquals(file.rejected.size(), sheet.getRejectedRows());
+
+        //each row in the table is one that was not rejected, with its own values
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT id, amount, name FROM t")) {
+            while (rs.next()) {
+                int i = Integer.parseInt(rs.getString(3).substring(1));
+                assertFalse(file.rejected.containsKey(i));
+                assertEquals(ids[i], rs.getLong(1));
+                assertEquals(amounts[i], rs.getInt(2));
+            }
+        }
+
+        for (String message : file.rejected.values())
+            assertFalse(message, message.isEmpty());
+    }
+
+    private static Excel2MySQL app(int bulk_size, int rows_per_insert, int insert_threads) {
+        Excel2MySQL app = new Excel2MySQL();
+        app.db_url = DB_URL;
+        app.db_user_name = "sa";
+        app.db_password = "";
+        app.bulk_size = bulk_size;
+        app.rows_per_insert = rows_per_insert;
+        app.insert_threads = insert_threads;
+        return app;
+    }
+
+    private static SheetImporter sheet(FileImport file) {
+        List<Mapping> dbMap = new ArrayList();
+        dbMap.add(mapping("A", "id", Type.INTEGER));
+        dbMap.add(mapping("B", "amount", Type.INTEGER));
+        dbMap.add(mapping("C", "name", Type.STRING));
+        ImportPlan plan = new ImportPlan("t", dbMap);
+
+        return new SheetImporter(file, "Sheet1", plan, file.app.bulk_size, null);
+    }
+
+    private static Mapping mapping(String excel_sym, String db_col, Type type) {
+        Mapping m = new Mapping(excel_sym, db_col);
+        m.setType(type);
+        m.setLen(16);
+        return m;
+    }
+
+    private static void addRow(RowBatch batch, long id, int amount, int rowNum) {
+        batch.setLong(0, id);
+        batch.setLong(1, amount);
+        batch.setString(2, "r" + rowNum);
+        batch.addRow(rowNum);
+    }
+
+    private int count() throws SQLException {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM t")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    //rows rejected by the DB by their sheet row, with the SQL error
+    private static class Recorded extends FileImport {
+        final TreeMap<Integer, String> rejected = new TreeMap();
+
+        Recorded(Excel2MySQL app) {
+            super(app, "test.csv");
+        }
+
+        @Override
+        synchronized void writeError(String sheetName, int rowNum, String column, String reason, List<String> line) {
+            assertNull(rejected.put(rowNum, reason));
+        }
+    }
+}
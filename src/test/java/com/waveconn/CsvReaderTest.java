@@ -0,0 +1,188 @@
+package com.waveconn;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * CsvReader splitting RFC 4180 text, also when rows cross the end of a mapped part
+ *
+ * Rows are taken by a SheetImporter which keeps the lines instead of validating them.
+ *
+ */
+public class CsvReaderTest {
+    private final List<File> files = new ArrayList();
+
+    @After
+    public void deleteFiles() {
+        for (File f : files)
+            f.delete();
+    }
+
+    @Test
+    public void quotedFields() throws IOException {
+        Rows rows = read(".csv", "a,\"b,c\",\"d\"\"e\"\n\"\",x,\"\"\"\"\n1,\"two\nlines\",3\n", true, CsvReader.WINDOW);
+
+        assertEquals(Arrays.asList(0, 1, 2), rows.rowNums);
+        assertEquals(Arrays.asList("a", "b,c", "d\"e"), rows.lines.get(0));
+        assertEquals(Arrays.asList("", "x", "\""), rows.lines.get(1));
+        assertEquals(Arrays.asList("1", "two\nlines", "3"), rows.lines.get(2));
+    }
+
+    @Test
+    public void lineEnds() throws IOException {
+        Rows rows = read(".csv", "a,b\r\n\r\nc,d\n\n,\ne,\"f\r\ng\"\r\nh,i", true, CsvReader.WINDOW);
+
+        //empty rows are skipped but counted, a row of empty fields is not empty
+        assertEquals(Arrays.asList(0, 2, 4, 5, 6), rows.rowNums);
+        assertEquals(Arrays.asList("a", "b"), rows.lines.get(0));
+        assertEquals(Arrays.asList("c", "d"), rows.lines.get(1));
+        assertEquals(Arrays.asList("", ""), rows.lines.get(2));
+        assertEquals(Arrays.asList("e", "f\r\ng"), rows.lines.get(3));
+        assertEquals(Arrays.asList("h", "i"), rows.lines.get(4));
+    }
+
+    @Test
+    public void unclosedQuoteAtEnd() throws IOException {
+        Rows rows = read(".csv", "a,\"b\nc", true, CsvReader.WINDOW);
+
+        assertEquals(Arrays.asList(Arrays.asList("a", "b\nc")), rows.lines);
+    }
+
+    @Test
+    public void byteOrderMarkAndUtf8() throws IOException {
+        Rows rows = read(".csv", "\uFEFFname,city\nJ\u00FCrgen,\"Z\u00FCrich, \u20AC\"\n\uD83D\uDE00,\u6771\u4EAC\n",
+                true, CsvReader.WINDOW);
+
+        assertEquals(Arrays.asList("name", "city"), rows.lines.get(0));
+        assertEquals(Arrays.asList("J\u00FCrgen", "Z\u00FCrich, \u20AC"), rows.lines.get(1));
+        assertEquals(Arrays.asList("\uD83D\uDE00", "\u6771\u4EAC"), rows.lines.get(2));
+    }
+
+    @Test
+    public void tabSeparated() throws IOException {
+        Rows rows = read(".tsv", "a,b\tc\n\"d\te\"\tf\n", true, CsvReader.WINDOW);
+
+        assertEquals(Arrays.asList("a,b", "c"), rows.lines.get(0));
+        assertEquals(Arrays.asList("d\te", "f"), rows.lines.get(1));
+    }
+
+    @Test
+    public void firstLineSkipped() throws IOException {
+        Rows rows = read(".csv", "id,name\n1,a\n2,b\n", false, CsvReader.WINDOW);
+
+        assertEquals(Arrays.asList(1, 2), rows.rowNums);
+        assertEquals(Arrays.asList("1", "a"), rows.lines.get(0));
+    }
+
+    @Test
+    public void headerAfterEmptyRows() throws IOException {
+        Rows rows = read(".csv", "\n\r\nid,name\n\n1,a\n", false, CsvReader.WINDOW);
+
+        //row numbers still count the empty rows
+        assertEquals(Arrays.asList(4), rows.rowNums);
+        assertEquals(Arrays.asList(Arrays.asList("1", "a")), rows.lines);
+    }
+
+    @Test
+    public void rowsAcrossWindows() throws IOException {
+        Random random = new Random(42);
+        List<List<String>> expected = new ArrayList();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            List<String> fields = new ArrayList();
+            int count = 2 + random.nextInt(4);
+            for (int f = 0; f < count; f++) {
+                String v = randomField(random);
+                fields.add(v);
+
+                if (f > 0)
+                    text.append(',');
+                if (random.nextBoolean() || v.matches("(?s).*[,\"\r\n].*"))
+                    text.append('"').append(v.replace("\"", "\"\"")).append('"');
+                else
+                    text.append(v);
+            }
+
+            expected.add(fields);
+            text.append(random.nextBoolean() ? "\n" : "\r\n");
+        }
+
+        //windows which end inside quotes, doubled quotes, CRLF and multi-byte chars
+        for (int window : new int[]{256, 257, 300, 1000, 4096, CsvReader.WINDOW}) {
+            Rows rows = read(".csv", text.toString(), true, window);
+
+            assertEquals("window " + window, expected.size(), rows.lines.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals("window " + window, i, rows.rowNums.get(i).intValue());
+                assertEquals("window " + window + ", row " + i, expected.get(i), rows.lines.get(i));
+                assertEquals("window " + window + ", row " + i, expected.get(i), rows.detached.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void rowLongerThanWindow() throws IOException {
+        try {
+            read(".csv", "a,b\n" + new String(new char[200]).replace('\0', 'x') + "\n", true, 64);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Row 2 is longer than 64 bytes", e.getMessage());
+        }
+    }
+
+    private static String randomField(Random random) {
+        String[] parts = {
+                "a", "bc", "1", "2.5", ",", "\"", "\n", "\r\n", " ", "\u00E9", "\u20AC", "\uD83D\uDE00", "\"\""
+        };
+
+        StringBuilder v = new StringBuilder();
+        int n = random.nextInt(6);
+        for (int i = 0; i < n; i++)
+            v.append(parts[random.nextInt(parts.length)]);
+
+        return v.toString();
+    }
+
+    private Rows read(String extension, String text, boolean is_read_first_line, int window) throws IOException {
+        File f = File.createTempFile("csv", extension);
+        files.add(f);
+        Files.write(f.toPath(), text.getBytes(StandardCharsets.UTF_8));
+
+        Rows rows = new Rows(f.getPath());
+        try (CsvReader reader = new CsvReader(f.getPath(), is_read_first_line, window)) {
+            reader.readSheet(reader.getSheetNames().get(0), rows);
+        }
+
+        return rows;
+    }
+
+    //the lines a sheet is given, as read and as detached from the reader
+    private static class Rows extends SheetImporter {
+        final List<Integer> rowNums = new ArrayList();
+        final List<List<String>> lines = new ArrayList();
+        //read once the whole file is
+        final List<List<String>> detached = new ArrayList();
+
+        Rows(String path) {
+            super(new FileImport(new Excel2MySQL(), path), "csv", new ImportPlan("csv", new ArrayList()), 1, null);
+        }
+
+        @Override
+        void rowToData(int rowNum, List<String> line) {
+            rowNums.add(rowNum);
+            lines.add(new ArrayList(line));
+            detached.add(((RowSource.ReusedLine) line).detach());
+        }
+    }
+}
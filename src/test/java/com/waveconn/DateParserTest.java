@@ -0,0 +1,146 @@
+package com.waveconn;
+
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * DateParser against POI DateUtil for serial dates, and its patterns for text
+ *
+ */
+public class DateParserTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    @Test
+    public void serialsAsDateUtil() {
+        //the days around the February 29th of 1900 Excel counts
+        for (int serial = 0; serial <= 100; serial++) {
+            assertSerial(serial, false);
+            assertSerial(serial, true);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double serial = random.nextDouble() * 2958465;
+            assertSerial(serial, false);
+            assertSerial(serial, true);
+            assertSerial(Math.floor(serial), false);
+        }
+    }
+
+    @Test
+    public void excel1900LeapYearBug() {
+        assertEquals(LocalDateTime.of(1899, 12, 31, 0, 0), serial(0, false));
+        assertEquals(LocalDateTime.of(1900, 1, 1, 0, 0), serial(1, false));
+        assertEquals(LocalDateTime.of(1900, 2, 28, 0, 0), serial(59, false));
+        //Excel's 1900-02-29 is taken as the day after February 28th, as POI does
+        assertEquals(LocalDateTime.of(1900, 3, 1, 0, 0), serial(60, false));
+        assertEquals(LocalDateTime.of(1900, 3, 1, 0, 0), serial(61, false));
+        assertEquals(LocalDateTime.of(1900, 3, 2, 0, 0), serial(62, false));
+        assertEquals(LocalDateTime.of(2015, 6, 26, 12, 0), serial(42181.5, false));
+    }
+
+    @Test
+    public void excel1904() throws IOException {
+        assertEquals(LocalDateTime.of(1904, 1, 1, 0, 0), serial(0, true));
+        assertEquals(LocalDateTime.of(1904, 3, 1, 0, 0), serial(60, true));
+        assertEquals(LocalDateTime.of(2015, 6, 26, 12, 0), serial(42181.5 - 1462, true));
+
+        try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+            assertFalse(DateParser.isDate1904(workbook));
+            workbook.getCTWorkbook().getWorkbookPr().setDate1904(true);
+            assertTrue(DateParser.isDate1904(workbook));
+        }
+    }
+
+    @Test
+    public void serialsOutOfRange() {
+        assertNull(DateParser.fromSerial(-1, false));
+        assertNull(DateParser.fromSerial(-0.5, true));
+    }
+
+    @Test
+    public void isoDates() {
+        DateParser parser = new DateParser(null);
+
+        assertEquals(LocalDateTime.of(2015, 6, 26, 0, 0), parse(parser, "2015-06-26"));
+        assertEquals(LocalDateTime.of(2015, 6, 26, 0, 0), parse(parser, " 2015-06-26 "));
+        assertEquals(LocalDateTime.of(2015, 6, 26, 13, 45), parse(parser, "2015-06-26 13:45"));
+        assertEquals(LocalDateTime.of(2015, 6, 26, 13, 45, 30), parse(parser, "2015-06-26T13:45:30"));
+        assertEquals(LocalDateTime.of(2015, 6, 26, 13, 45, 30, 250000000), parse(parser, "2015-06-26 13:45:30.25"));
+        assertEquals(LocalDateTime.of(2016, 2, 29, 0, 0), parse(parser, "2016-02-29"));
+
+        assertNull(parser.parse("26/06/2015"));
+        assertNull(parser.parse("2015-6-26"));
+        assertNull(parser.parse("2015-06-26 25:00"));
+        assertNull(parser.parse("2015-06-26x"));
+        assertNull(parser.parse(""));
+    }
+
+    @Test
+    public void strictDates() {
+        DateParser parser = new DateParser("dd/MM/yyyy");
+
+        assertNull(parser.parse("2015-02-30"));
+        assertNull(parser.parse("2015-02-29"));
+        assertNull(parser.parse("2015-04-31"));
+        assertNull(parser.parse("30/02/2015"));
+        assertNull(parser.parse("31/04/2015"));
+        assertNull(parser.parse("29/02/1900"));
+        assertEquals(LocalDateTime.of(2000, 2, 29, 0, 0), parse(parser, "29/02/2000"));
+    }
+
+    @Test
+    public void severalPatterns() {
+        DateParser parser = new DateParser("dd/MM/yyyy | yyyy.MM.dd HH:mm|dd-MM-yyyy|MM-dd-yyyy");
+
+        assertEquals(LocalDateTime.of(2015, 6, 26, 0, 0), parse(parser, "26/06/2015"));
+        assertEquals(LocalDateTime.of(2015, 6, 26, 13, 45), parse(parser, "2015.06.26 13:45"));
+        //the first pattern the text is a date in is taken
+        assertEquals(LocalDateTime.of(2015, 12, 11, 0, 0), parse(parser, "11-12-2015"));
+        //text which fits an earlier pattern but is no date in it goes on to the next
+        assertEquals(LocalDateTime.of(2015, 12, 13, 0, 0), parse(parser, "12-13-2015"));
+        //ISO dates are always taken
+        assertEquals(LocalDateTime.of(2015, 6, 26, 0, 0), parse(parser, "2015-06-26"));
+
+        assertNull(parser.parse("26/06/2015 13:45"));
+        assertNull(parser.parse("2015.06.26"));
+        assertNull(parser.parse("13-13-2015"));
+    }
+
+    @Test
+    public void timeWithoutDate() {
+        assertNull(new DateParser("HH:mm").parse("13:45"));
+    }
+
+    @Test
+    public void format() {
+        assertEquals("2015-06-26", DateParser.format(DateParser.fromSerial(42181, false)));
+        assertEquals("2015-06-26 12:00:00.000", DateParser.format(DateParser.fromSerial(42181.5, false)));
+        assertEquals("1899-12-31", DateParser.format(DateParser.fromSerial(0, false)));
+    }
+
+    //fromSerial gives the date and time of DateUtil in UTC, as no time zone is applied
+    private static void assertSerial(double serial, boolean date1904) {
+        long expected = DateUtil.getJavaCalendar(serial, date1904, UTC).getTimeInMillis();
+        assertEquals(serial + (date1904 ? " 1904" : ""),
+                Long.valueOf(expected), DateParser.fromSerial(serial, date1904));
+    }
+
+    private static LocalDateTime serial(double serial, boolean date1904) {
+        return DateParser.toDateTime(DateParser.fromSerial(serial, date1904));
+    }
+
+    private static LocalDateTime parse(DateParser parser, String v) {
+        Long date = parser.parse(v);
+        assertNotNull(v, date);
+        return DateParser.toDateTime(date);
+    }
+}
@@ -0,0 +1,162 @@
+package com.waveconn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * KeySet keeping the last row of each key, also when keys share a hash or a slot
+ *
+ * Rows of random keys are deduplicated by KeySet and by a plain scan of the file, and the rows kept
+ * by both must be the same. Hash collisions are forced by batches which mask the hash of RowBatch.
+ *
+ */
+public class KeySetTest {
+    private static final int ROWS = 5000;
+
+    @Test
+    public void lastRowOfEachKey() {
+        dropDuplicates(-1L);
+    }
+
+    @Test
+    public void allKeysOneHash() {
+        dropDuplicates(0L);
+    }
+
+    @Test
+    public void twoHashes() {
+        dropDuplicates(1L);
+    }
+
+    @Test
+    public void sameSlotDifferentHashes() {
+        //the low bits pick the slot
+        dropDuplicates(-1L << 20);
+    }
+
+    @Test
+    public void negativeZero() {
+        List<Mapping> dbMap = new ArrayList();
+        dbMap.add(mapping("A", "amount", Type.NUMBER, true));
+        ImportPlan plan = new ImportPlan("t", dbMap, true);
+        SheetImporter sheet = sheet(plan);
+
+        RowBatch batch = new RowBatch(plan, sheet, 3);
+        batch.setDouble(0, 0.0);
+        batch.addRow(0);
+        batch.setDouble(0, -0.0);
+        batch.addRow(1);
+        batch.setDouble(0, 1.0);
+        batch.addRow(2);
+
+        KeySet keys = new KeySet(plan);
+        keys.add(batch);
+        assertEquals(1, keys.dropDuplicates());
+        assertEquals(2, batch.size());
+        assertEquals(1, batch.getRowNum(0));
+        assertEquals(2, batch.getRowNum(1));
+    }
+
+    //rows of keys (id, code) with some nulls, in batches whose hashes are masked with mask
+    private static void dropDuplicates(long mask) {
+        List<Mapping> dbMap = new ArrayList();
+        dbMap.add(mapping("A", "id", Type.INTEGER, true));
+        dbMap.add(mapping("B", "code", Type.STRING, true));
+        dbMap.add(mapping("C", "value", Type.STRING, false));
+        ImportPlan plan = new ImportPlan("t", dbMap, true);
+        SheetImporter sheet = sheet(plan);
+
+        Random random = new Random(42);
+        List<Long> ids = new ArrayList();
+        List<String> codes = new ArrayList();
+        List<RowBatch> batches = new ArrayList();
+        KeySet keys = new KeySet(plan);
+        for (int rowNum = 0; rowNum < ROWS; ) {
+            RowBatch batch = new MaskedBatch(plan, sheet, 1 + random.nextInt(100), mask);
+            while (!batch.isFull() && rowNum < ROWS) {
+                Long id = random.nextInt(20) == 0 ? null : (long) random.nextInt(2000) - 1000;
+                String code = random.nextInt(20) == 0 ? null : "c" + random.nextInt(3);
+                ids.add(id);
+                codes.add(code);
+
+                if (id == null)
+                    batch.setNull(0);
+                else
+                    batch.setLong(0, id);
+                if (code == null)
+                    batch.setNull(1);
+                else
+                    batch.setString(1, code);
+                batch.setString(2, "v" + rowNum);
+                batch.addRow(rowNum++);
+            }
+
+            batches.add(batch);
+            keys.add(batch);
+        }
+
+        //a row is kept unless a later row has the same key, rows with a null key are all kept
+        Set<Integer> expected = new HashSet();
+        Set<String> seen = new HashSet();
+        for (int rowNum = ROWS - 1; rowNum >= 0; rowNum--) {
+            boolean nullKey = ids.get(rowNum) == null || codes.get(rowNum) == null;
+            if (nullKey || seen.add(ids.get(rowNum) + "/" + codes.get(rowNum)))
+                expected.add(rowNum);
+        }
+
+        int dropped = keys.dropDuplicates();
+        assertEquals(ROWS - expected.size(), dropped);
+        assertEquals(dropped, sheet.getDroppedRows());
+
+        Set<Integer> kept = new HashSet();
+        for (RowBatch batch : batches) {
+            for (int row = 0; row < batch.size(); row++) {
+                int rowNum = batch.getRowNum(row);
+                kept.add(rowNum);
+
+                //the values move with their row
+                assertEquals("v" + rowNum, batch.getString(2, row));
+                assertEquals(ids.get(rowNum) == null, batch.isNull(0, row));
+                if (ids.get(rowNum) != null)
+                    assertEquals(ids.get(rowNum).longValue(), batch.getLong(0, row));
+                assertTrue(Objects.equals(codes.get(rowNum), batch.isNull(1, row) ? null : batch.getString(1, row)));
+            }
+        }
+
+        assertEquals(expected, kept);
+    }
+
+    private static Mapping mapping(String excel_sym, String db_col, Type type, boolean key) {
+        Mapping m = new Mapping(excel_sym, db_col);
+        m.setType(type);
+        m.setKey(key);
+        return m;
+    }
+
+    private static SheetImporter sheet(ImportPlan plan) {
+        return new SheetImporter(new FileImport(new Excel2MySQL(), "test.csv"), "Sheet1", plan, 100, null);
+    }
+
+    //a batch whose hashes keep only the bits of mask
+    private static class MaskedBatch extends RowBatch {
+        private final long mask;
+
+        MaskedBatch(ImportPlan plan, SheetImporter sheet, int capacity, long mask) {
+            super(plan, sheet, capacity);
+            this.mask = mask;
+        }
+
+        @Override
+        long hash(int row, int[] cols) {
+            return super.hash(row, cols) & mask;
+        }
+    }
+}
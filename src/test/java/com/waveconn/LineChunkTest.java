@@ -0,0 +1,128 @@
+package com.waveconn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lines validated in LineChunks on a pool come out as they do on the reading thread
+ *
+ * Batches and error rows of a sheet are recorded by a FileImport which keeps them, and compared
+ * with those of the same lines validated without the pool.
+ *
+ */
+public class LineChunkTest {
+    private static final int ROWS = 10 * LineChunk.CHUNK_SIZE + 123;
+
+    @Test
+    public void sameAsOneThread() {
+        for (int bulk_size : new int[]{1, 50, LineChunk.CHUNK_SIZE, 5000}) {
+            Recorded expected = validate(null, bulk_size);
+            checkOrder(expected);
+
+            for (int threads : new int[]{1, 2, 4, 8}) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    Recorded actual = validate(pool, bulk_size);
+                    String where = "bulk size " + bulk_size + ", " + threads + " threads";
+                    assertEquals(where, expected.batches, actual.batches);
+                    assertEquals(where, expected.errors, actual.errors);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+
+    //rows of the batches and error rows go up, and the batches cover the sheet without gaps
+    private static void checkOrder(Recorded recorded) {
+        int next = 0;
+        int valid = 0;
+        for (String batch : recorded.batches) {
+            String[] range = batch.substring(0, batch.indexOf(':')).split("-");
+            assertEquals(batch, next, Integer.parseInt(range[0]));
+            next = Integer.parseInt(range[1]) + 1;
+            valid += batch.split(";").length;
+        }
+
+        int last = -1;
+        for (String error : recorded.errors) {
+            int rowNum = Integer.parseInt(error.substring(0, error.indexOf(' ')));
+            assertTrue(error, rowNum > last);
+            last = rowNum;
+        }
+
+        assertEquals(ROWS, valid + recorded.errors.size());
+    }
+
+    private static Recorded validate(ForkJoinPool pool, int bulk_size) {
+        List<Mapping> dbMap = new ArrayList();
+        dbMap.add(mapping("A", "id", Type.INTEGER));
+        dbMap.add(mapping("B", "name", Type.STRING));
+        dbMap.add(mapping("C", "amount", Type.NUMBER));
+        dbMap.add(mapping("E", "active", Type.BOOLEAN));
+        ImportPlan plan = new ImportPlan("t", dbMap);
+
+        Excel2MySQL app = new Excel2MySQL();
+        app.validators = pool;
+        Recorded recorded = new Recorded(app);
+
+        SheetImporter sheet = new SheetImporter(recorded, "Sheet1", plan, bulk_size, null);
+        for (int i = 0; i < ROWS; i++) {
+            String id = i % 7 == 3 ? "x" + i : Integer.toString(i);
+            String amount = i % 11 == 5 ? "n/a" : i + ".25";
+            String active = i % 13 == 8 ? "maybe" : i % 2 == 0 ? "yes" : "no";
+            //rows shorter than the plan have empty cells at the end
+            List<String> line = i % 17 == 0
+                    ? Arrays.asList(id, "name " + i)
+                    : Arrays.asList(id, "name " + i, amount, "not mapped", active);
+            sheet.rowToData(i, line);
+        }
+        sheet.finish();
+
+        return recorded;
+    }
+
+    private static Mapping mapping(String excel_sym, String db_col, Type type) {
+        Mapping m = new Mapping(excel_sym, db_col);
+        m.setType(type);
+        return m;
+    }
+
+    //batches and error rows in the order the sheet hands them on
+    private static class Recorded extends FileImport {
+        //first-last row: the values of each row, row by row
+        final List<String> batches = new ArrayList();
+        //row, column and reason
+        final List<String> errors = new ArrayList();
+
+        Recorded(Excel2MySQL app) {
+            super(app, "test.csv");
+        }
+
+        @Override
+        void batchDone(RowBatch batch) {
+            StringBuilder b = new StringBuilder();
+            b.append(batch.getFirstRow()).append('-').append(batch.getLastRow()).append(':');
+            for (int row = 0; row < batch.size(); row++) {
+                if (row > 0)
+                    b.append(';');
+                b.append(batch.getRowNum(row));
+                for (int c = 0; c < batch.plan.size(); c++)
+                    b.append(',').append(batch.format(c, row));
+            }
+
+            batches.add(b.toString());
+        }
+
+        @Override
+        synchronized void writeError(String sheetName, int rowNum, String column, String reason, List<String> line) {
+            errors.add(rowNum + " " + column + " " + reason + " " + line);
+        }
+    }
+}
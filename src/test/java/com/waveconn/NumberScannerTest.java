@@ -0,0 +1,150 @@
+package com.waveconn;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * NumberScanner against Long.parseLong and Double.parseDouble
+ *
+ * Text either side accepts must give the same value to the bit, text one side rejects must be
+ * rejected by the other, apart from what NumberScanner rejects on purpose.
+ *
+ */
+public class NumberScannerTest {
+    private final NumberScanner scanner = new NumberScanner();
+
+    @Test
+    public void longsAsParseLong() {
+        String[] values = {
+                "0", "-0", "+0", "7", "-7", "+7", "0012", "-0012",
+                "9223372036854775807", "-9223372036854775808",
+                "9223372036854775808", "-9223372036854775809", "92233720368547758070", "18446744073709551616",
+                "", "-", "+", "--1", "+-1", " 1", "1 ", "1.0", "1e3", "0x10", "1_000", "12a"
+        };
+
+        for (String v : values)
+            assertLong(v);
+    }
+
+    @Test
+    public void longsRejectOtherDigits() {
+        //Long.parseLong takes any Unicode digit, MySQL does not
+        assertFalse(scanner.scanLong("\u0663"));
+        assertFalse(scanner.scanLong("1\uFF12"));
+    }
+
+    @Test
+    public void doublesAsParseDouble() {
+        String[] values = {
+                "0", "-0", "+0", "-0.0", "0.0e10", "1", "-1", "+1.5", "1.", ".5", "-.5", "  12.25 ", "\t3\n",
+                "0.1", "0.2", "0.3", "1.1", "2.675", "123.456", "-98765.4321", "1e5d", "2.5F", "3D", "4f",
+                //15 significant digits, the exact path
+                "123456789012345", "0.123456789012345", "999999999999999", "-1.23456789012345e-10",
+                //16 and more, handed to Double.parseDouble
+                "1234567890123456", "9007199254740993", "0.1234567890123456789", "12345678901234567890123",
+                "9223372036854775807", "-9223372036854775808",
+                //leading and trailing zeros
+                "000000000000000000001", "0.000000000000000000001", "100000000000000000000000",
+                "1.000000000000000000000", "0.0000000000000000000000001234",
+                //the exponent at the edge of the exact powers of ten
+                "1e22", "1e23", "1e-22", "1e-23", "123456789012345e22", "123456789012345e-22",
+                "123456789012345e23", "123456789012345e-23", "9e22", "9e-22", "1.5e21", "15e21", "0.5e-21",
+                "1E+22", "1E-022", "1e0", "1e-0",
+                //the ends of double range
+                "1.7976931348623157e308", "-1.7976931348623157e308", "4.9e-324", "2.2250738585072014E-308",
+                "2.2250738585072011e-308", "1e-400", "-1e-400", "1e400", "-1e400", "1.8e308", "1e99999999999"
+        };
+
+        for (String v : values)
+            assertDouble(v);
+    }
+
+    @Test
+    public void doublesRejectWhatMySQLCannotStore() {
+        String[] values = {
+                "NaN", "-NaN", "Infinity", "-Infinity", "+Infinity", "0x1p3", "0x10", "-0X1.8P1",
+                "1e400", "-1e400", "1.8e308"
+        };
+
+        for (String v : values)
+            assertFalse(v, scanner.scanDouble(v));
+    }
+
+    @Test
+    public void doublesRejectBadSyntax() {
+        String[] values = {
+                "", " ", "-", "+", ".", "-.", "e5", ".e5", "1e", "1e+", "1e-", "1.2.3", "1..2", "--1", "+-1",
+                "1 2", "1,5", "1e5.5", "1ee5", "1dd", "1fd", "d", "1x", "1_000", "\u0663"
+        };
+
+        for (String v : values) {
+            assertFalse(v, scanner.scanDouble(v));
+            assertRejected(v);
+        }
+    }
+
+    @Test
+    public void randomDoubles() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double d = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(d) || Double.isInfinite(d))
+                continue;
+
+            assertDouble(Double.toString(d));
+            assertDouble(String.format(Locale.ROOT, "%." + random.nextInt(18) + "g", d));
+        }
+
+        //cell text as people type it, mostly on the exact path
+        for (int i = 0; i < 100000; i++) {
+            long mantissa = random.nextLong() % 1000000000000000L;
+            int scale = random.nextInt(30) - 15;
+            assertDouble(new BigDecimal(mantissa).scaleByPowerOfTen(scale).toPlainString());
+            assertDouble(mantissa + "e" + (random.nextInt(60) - 30));
+        }
+    }
+
+    //scanLong accepts v exactly when Long.parseLong does, with the same value
+    private void assertLong(String v) {
+        Long expected;
+        try {
+            expected = Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            expected = null;
+        }
+
+        if (expected == null) {
+            assertFalse(v, scanner.scanLong(v));
+        } else {
+            assertTrue(v, scanner.scanLong(v));
+            assertEquals(v, expected.longValue(), scanner.longValue);
+        }
+    }
+
+    //scanDouble gives the same double as Double.parseDouble, or rejects v if that is not finite
+    private void assertDouble(String v) {
+        double expected = Double.parseDouble(v);
+        if (Double.isInfinite(expected)) {
+            assertFalse(v, scanner.scanDouble(v));
+            return;
+        }
+
+        assertTrue(v, scanner.scanDouble(v));
+        assertEquals(v, Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(scanner.doubleValue));
+    }
+
+    private static void assertRejected(String v) {
+        try {
+            double d = Double.parseDouble(v);
+            //only text NumberScanner rejects on purpose is a number to Double.parseDouble
+            assertTrue(v, Double.isNaN(d) || Double.isInfinite(d));
+        } catch (NumberFormatException e) {
+            //rejected by both
+        }
+    }
+}